@@ -0,0 +1,84 @@
+package com.google.sps.benchmarks;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.sps.data.CommentStore;
+import com.google.sps.services.Clients;
+import com.google.sps.services.CommentPages;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The read side of /data: a page of comment entities read from the store, translated and
+ * written as JSON, the work DataServlet.doGet does whenever a page isn't cached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommentPageBenchmark {
+
+  private static final int STORED_COMMENTS = 1000;
+
+  @Param({"5", "20", "100"})
+  public int pageSize;
+
+  private List<Entity> page;
+  private CommentPages.TranslatedContents contents;
+
+  @Setup
+  public void setUp() throws IOException {
+    StandIns.install();
+    StandIns.fillStore(STORED_COMMENTS);
+    page = Clients.comments().newest(pageSize, null, null).getComments();
+    contents = CommentPages.translateContents(page, null);
+  }
+
+  /** A page in the original language: store, then entity to JSON. */
+  @Benchmark
+  public String readPage() throws IOException {
+    return render(null);
+  }
+
+  /**
+   * A translated page. Translations are cached per comment, so after the first call this
+   * measures the TranslationCache hit path rather than Translate.
+   */
+  @Benchmark
+  public String readTranslatedPage() throws IOException {
+    return render("es");
+  }
+
+  /** Only the entity to JSON step, on a page read once in setUp(). */
+  @Benchmark
+  public String writePage() throws IOException {
+    StringWriter json = new StringWriter();
+    CommentPages.writePage(json, page, contents, null, CommentPages.lastOrder(page));
+    return json.toString();
+  }
+
+  private String render(String language) throws IOException {
+    CommentStore.Page fetched = Clients.comments().newest(pageSize, null, null);
+    List<Entity> entities = fetched.getComments();
+    CommentPages.TranslatedContents translatedContents =
+        CommentPages.translateContents(entities, language);
+    StringWriter json = new StringWriter();
+    CommentPages.writePage(json, entities, translatedContents, fetched.getNextCursor(),
+        CommentPages.lastOrder(entities));
+    return json.toString();
+  }
+}
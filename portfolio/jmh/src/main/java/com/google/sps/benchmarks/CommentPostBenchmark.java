@@ -0,0 +1,63 @@
+package com.google.sps.benchmarks;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.sps.data.LocalCommentStore;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The write side of /data: building the entity of a posted comment and storing it. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommentPostBenchmark {
+
+  private int posted;
+  private File log;
+  private LocalCommentStore store;
+
+  @Setup
+  public void setUp() throws IOException {
+    StandIns.install();
+  }
+
+  /** A fresh store each iteration, so the log never outgrows its mapping. */
+  @Setup(Level.Iteration)
+  public void openStore() throws IOException {
+    log = File.createTempFile("posts", ".log");
+    store = new LocalCommentStore(log.toPath());
+  }
+
+  @TearDown(Level.Iteration)
+  public void closeStore() {
+    store.close();
+    log.delete();
+  }
+
+  /** The entity DataServlet.doPost builds for a comment with an image. */
+  @Benchmark
+  public Entity newCommentEntity() {
+    return StandIns.newComment(posted++ * 3);
+  }
+
+  /** Building the entity and appending it to the local store. */
+  @Benchmark
+  public Entity postComment() {
+    return store.put(StandIns.newComment(posted++ * 3));
+  }
+}
@@ -0,0 +1,211 @@
+package com.google.sps.benchmarks;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.api.services.translate.model.TranslationsResource;
+import com.google.appengine.api.datastore.Entity;
+import com.google.apphosting.api.ApiProxy;
+import com.google.cloud.language.v1.AnalyzeSentimentRequest;
+import com.google.cloud.language.v1.AnalyzeSentimentResponse;
+import com.google.cloud.language.v1.LanguageServiceClient;
+import com.google.cloud.language.v1.Sentiment;
+import com.google.cloud.language.v1.stub.LanguageServiceStub;
+import com.google.cloud.translate.Translate;
+import com.google.cloud.translate.Translation;
+import com.google.sps.data.CommentStore;
+import com.google.sps.data.ImageVariant;
+import com.google.sps.servlets.DataServlet;
+import com.google.sps.services.Clients;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stand-ins for the cloud services the comment path uses, so the benchmarks measure
+ * this app's code rather than the network. Comments are kept in a LocalCommentStore in a
+ * temporary file, Translate hands back the text tagged as translated and Natural
+ * Language gives every text the same score.
+ */
+final class StandIns {
+
+  private static boolean installed;
+
+  private StandIns() {}
+
+  /** Installs the stand-ins for this JVM. Safe to call from every benchmark's setup. */
+  static synchronized void install() throws IOException {
+    if (installed) {
+      return;
+    }
+    // keys need an App Engine environment on the thread that creates them
+    ApiProxy.setEnvironmentFactory(BenchmarkEnvironment::new);
+    File log = File.createTempFile("comments", ".log");
+    log.deleteOnExit();
+    System.setProperty("comments.store", "local");
+    System.setProperty("comments.store.path", log.getPath());
+    Clients.useClients(translate(), language());
+    installed = true;
+  }
+
+  /** Stores count comments, a third of them with an image. */
+  static void fillStore(int count) {
+    CommentStore store = Clients.comments();
+    for (int i = 0; i < count; i++) {
+      store.put(newComment(i));
+    }
+  }
+
+  /** Returns a new comment like the ones visitors post. */
+  static Entity newComment(int i) {
+    Entity comment = DataServlet.newCommentEntity(String.valueOf(i % 50),
+        "visitor" + (i % 50) + "@example.com", "Visitor " + i,
+        "Comment number " + i + ", a sentence or two like most comments on the page.", "Happy",
+        i % 3 == 0 ? imageUrls() : new EnumMap<>(ImageVariant.class), Instant.now());
+    // as the TranslationPipeline would detect it
+    comment.setProperty("language", "en");
+    return comment;
+  }
+
+  static Map<ImageVariant, String> imageUrls() {
+    Map<ImageVariant, String> urls = new EnumMap<>(ImageVariant.class);
+    for (ImageVariant variant : ImageVariant.values()) {
+      urls.put(variant, variant.url("https://lh3.googleusercontent.com/example"));
+    }
+    return urls;
+  }
+
+  /** Returns a Translate that "translates" by tagging the text. */
+  private static Translate translate() {
+    return (Translate) Proxy.newProxyInstance(Translate.class.getClassLoader(),
+        new Class<?>[] {Translate.class}, (proxy, method, args) -> {
+          if (!method.getName().equals("translate")) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+          if (args[0] instanceof String) {
+            return translation("[translated] " + args[0]);
+          }
+          List<Translation> translations = new ArrayList<>();
+          for (Object text : (List<?>) args[0]) {
+            translations.add(translation("[translated] " + text));
+          }
+          return translations;
+        });
+  }
+
+  private static Translation translation(String text) throws ReflectiveOperationException {
+    // Translations are only made by the client library itself
+    Method fromPb = Translation.class.getDeclaredMethod("fromPb", TranslationsResource.class);
+    fromPb.setAccessible(true);
+    return (Translation) fromPb.invoke(null,
+        new TranslationsResource().setTranslatedText(text).setDetectedSourceLanguage("en"));
+  }
+
+  /** Returns a Natural Language client that scores every text as neutral. */
+  private static LanguageServiceClient language() {
+    AnalyzeSentimentResponse neutral = AnalyzeSentimentResponse.newBuilder()
+        .setDocumentSentiment(Sentiment.newBuilder().setScore(0f))
+        .build();
+    return LanguageServiceClient.create(new LanguageServiceStub() {
+      @Override
+      public UnaryCallable<AnalyzeSentimentRequest, AnalyzeSentimentResponse>
+          analyzeSentimentCallable() {
+        return new UnaryCallable<AnalyzeSentimentRequest, AnalyzeSentimentResponse>() {
+          @Override
+          public ApiFuture<AnalyzeSentimentResponse> futureCall(
+              AnalyzeSentimentRequest request, ApiCallContext context) {
+            return ApiFutures.immediateFuture(neutral);
+          }
+        };
+      }
+
+      @Override
+      public void close() {}
+
+      @Override
+      public void shutdown() {}
+
+      @Override
+      public boolean isShutdown() {
+        return false;
+      }
+
+      @Override
+      public boolean isTerminated() {
+        return false;
+      }
+
+      @Override
+      public void shutdownNow() {}
+
+      @Override
+      public boolean awaitTermination(long duration, TimeUnit unit) {
+        return true;
+      }
+    });
+  }
+
+  /** The environment App Engine would give a request thread. */
+  private static final class BenchmarkEnvironment implements ApiProxy.Environment {
+    private final Map<String, Object> attributes = new HashMap<>();
+
+    @Override
+    public String getAppId() {
+      return "s~portfolio-benchmarks";
+    }
+
+    @Override
+    public String getModuleId() {
+      return "default";
+    }
+
+    @Override
+    public String getVersionId() {
+      return "1";
+    }
+
+    @Override
+    public String getEmail() {
+      return null;
+    }
+
+    @Override
+    public boolean isLoggedIn() {
+      return false;
+    }
+
+    @Override
+    public boolean isAdmin() {
+      return false;
+    }
+
+    @Override
+    public String getAuthDomain() {
+      return "gmail.com";
+    }
+
+    @Override
+    public String getRequestNamespace() {
+      return "";
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return attributes;
+    }
+
+    @Override
+    public long getRemainingMillis() {
+      return Long.MAX_VALUE;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+/** Writes Comment entities in the JSON shape the client expects. */
+public final class CommentJson {
+
+  private CommentJson() {}
+
+  /**
+   * Writes one comment as a JSON object, with content in place of the stored text
+   * (e.g. its translation). The writer should skip nulls, since the client checks for
+   * missing fields such as the image of a text-only comment.
+   */
+  public static void write(JsonWriter writer, Entity entity, String content) throws IOException {
+    write(writer, entity, content, true);
+  }
+
+  /**
+   * Writes one comment like write(writer, entity, content), adding "translated": false if
+   * translated is false, i.e. content is the original text of a comment that should have been
+   * translated.
+   */
+  public static void write(JsonWriter writer, Entity entity, String content, boolean translated)
+      throws IOException {
+    writer.beginObject();
+    // ids are only unique within a poster's entity group, so the client gets the whole key
+    writer.name("id").value(KeyFactory.keyToString(entity.getKey()));
+    writer.name("name").value((String) entity.getProperty("name"));
+    writer.name("timestamp").value((Number) entity.getProperty("timestamp"));
+    writer.name("content").value(content);
+    if (!translated) {
+      writer.name("translated").value(false);
+    }
+    for (ImageVariant variant : ImageVariant.values()) {
+      writer.name(variant.getJsonName()).value((String) entity.getProperty(variant.getProperty()));
+    }
+    writer.name("mood").value((String) entity.getProperty("mood"));
+    float sentiment = ((Number) entity.getProperty("sentiment")).floatValue();
+    writer.name("sentiment").value((Float) sentiment);
+    writer.endObject();
+  }
+}
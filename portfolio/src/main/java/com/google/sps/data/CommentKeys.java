@@ -0,0 +1,51 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Comments are stored in an entity group rooted at their poster, Poster(hash)/Comment(id).
+ * Whether a comment belongs to the current user then follows from its key alone, and a
+ * user's own comments can be listed with a strongly consistent ancestor query.
+ * Keys end up in cursors and in the JSON sent to every visitor, so the poster is named by
+ * a hash of their user id, never by anything that identifies them.
+ *
+ * <p>Comments posted before user ids were recorded only know their poster's email; those
+ * are rooted at legacyPosterKey(email), which is hashed the same way.
+ */
+public final class CommentKeys {
+
+  private static final String POSTER_KIND = "Poster";
+  private static final Pattern HASHED_NAME = Pattern.compile("[0-9a-f]{64}");
+
+  private CommentKeys() {}
+
+  /** Returns the root key of everything the user with this user id posted. */
+  public static Key posterKey(String userId) {
+    return KeyFactory.createKey(POSTER_KIND, Hashes.sha256Hex("user:" + userId));
+  }
+
+  /** Returns the root key of the comments this email posted before user ids were recorded. */
+  public static Key legacyPosterKey(String email) {
+    return KeyFactory.createKey(POSTER_KIND, Hashes.sha256Hex("email:" + email));
+  }
+
+  /** Returns the roots of every comment the user may have posted, current one first. */
+  public static List<Key> posterKeys(String userId, String email) {
+    return Arrays.asList(posterKey(userId), legacyPosterKey(email));
+  }
+
+  /** Returns true if the poster key is one of the hashed ones built here. */
+  public static boolean isHashedPosterKey(Key posterKey) {
+    return posterKey != null && POSTER_KIND.equals(posterKey.getKind())
+        && posterKey.getName() != null && HASHED_NAME.matcher(posterKey.getName()).matches();
+  }
+
+  /** Returns the key of the comment with this id under the given poster. */
+  public static Key commentKey(Key posterKey, long id) {
+    return KeyFactory.createKey(posterKey, "Comment", id);
+  }
+}
@@ -0,0 +1,61 @@
+package com.google.sps.data;
+
+import com.google.sps.services.Clients;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the "order" property comments are listed and paged by.
+ * An order is (millisecond, sequence, instance tag) packed into one long, so two comments
+ * posted in the same millisecond still get distinct, increasing values. The sequence is
+ * per instance and advanced with a single compare-and-set, so posting never waits on a lock
+ * or a shared counter; the instance tag keeps values from different instances apart.
+ */
+public final class CommentOrder {
+
+  private static final int INSTANCE_BITS = 8;
+  private static final int SEQUENCE_BITS = 12;
+  private static final long INSTANCE_MASK = (1L << INSTANCE_BITS) - 1;
+
+  /** last (millisecond, sequence) handed out by this instance */
+  private static final AtomicLong last = new AtomicLong();
+  private static final long instanceTag = newInstanceTag();
+
+  private CommentOrder() {}
+
+  /** Returns an order greater than every order this instance returned before. */
+  public static long next() {
+    long now = System.currentTimeMillis() << SEQUENCE_BITS;
+    // more than 4096 posts in one millisecond simply borrow from the next millisecond
+    long sequence = last.updateAndGet(previous -> Math.max(previous + 1, now));
+    return (sequence << INSTANCE_BITS) | instanceTag;
+  }
+
+  /** Returns the order of a comment stored before orders existed. */
+  public static long forLegacyComment(long timestamp, long id) {
+    return (timestamp << (SEQUENCE_BITS + INSTANCE_BITS))
+        | (id & ((1L << (SEQUENCE_BITS + INSTANCE_BITS)) - 1));
+  }
+
+  /**
+   * Instances take turns through the tags with a shared counter, so concurrently running
+   * instances get different tags; a random tag is used if Memcache is unavailable.
+   * A LocalCommentStore is only written by this instance, so any tag will do.
+   */
+  private static long newInstanceTag() {
+    if (!Clients.usesDatastore()) {
+      return 0;
+    }
+    Long counter;
+    try {
+      counter = Clients.memcache().increment("comment-order-instance", 1, 0L);
+    } catch (RuntimeException e) {
+      // e.g. no App Engine APIs at all, when running benchmarks
+      counter = null;
+    }
+    if (counter == null) {
+      return new SecureRandom().nextInt() & INSTANCE_MASK;
+    }
+    return counter & INSTANCE_MASK;
+  }
+}
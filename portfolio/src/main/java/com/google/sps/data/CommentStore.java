@@ -0,0 +1,76 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Where comments are kept. The servlets only talk to this interface, so the comment path can
+ * run on Datastore (DatastoreCommentStore) or entirely on local disk (LocalCommentStore),
+ * e.g. to profile it offline. Comments are "Comment" entities keyed as in CommentKeys.
+ */
+public interface CommentStore {
+
+  /** A page of comments, newest first, and the cursor the following page starts at. */
+  final class Page {
+    private final List<Entity> comments;
+    private final String nextCursor;
+
+    public Page(List<Entity> comments, String nextCursor) {
+      this.comments = comments;
+      this.nextCursor = nextCursor;
+    }
+
+    public List<Entity> getComments() {
+      return comments;
+    }
+
+    public String getNextCursor() {
+      return nextCursor;
+    }
+  }
+
+  /**
+   * Stores a new comment and returns it as stored, which has a complete key even if the
+   * given entity had none yet.
+   */
+  Entity put(Entity comment);
+
+  /** Stores several comments, e.g. after updating them. */
+  void put(List<Entity> comments);
+
+  /**
+   * Re-reads the stored comments with these keys, applies change to each and stores them
+   * again, atomically per entity group, so concurrent writes to other properties aren't lost.
+   * Comments that no longer exist are skipped, not recreated. Returns the updated comments.
+   */
+  List<Entity> update(Collection<Key> keys, Consumer<Entity> change);
+
+  /** Returns the stored comments with these keys; missing ones are left out. */
+  Map<Key, Entity> get(Collection<Key> keys);
+
+  /** Deletes the comments with these keys. Keys that don't exist are ignored. */
+  void delete(Collection<Key> keys);
+
+  /**
+   * Returns up to limit comments by descending order: continuing from cursor if there is one,
+   * otherwise the newest comments ordered below before, if given.
+   * Throws IllegalArgumentException if the cursor is invalid.
+   */
+  Page newest(int limit, String cursor, Long before);
+
+  /**
+   * Returns the newest comments under any of these poster keys (see CommentKeys), newest
+   * first.
+   */
+  List<Entity> postedBy(List<Key> posterKeys, int limit);
+
+  /** Returns the keys of comments still waiting for a sentiment score. */
+  List<Key> pendingSentiment(int limit);
+
+  /** Releases whatever the store holds open. Called when the webapp stops. */
+  void close();
+}
@@ -0,0 +1,95 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.sps.services.Clients;
+
+/**
+ * Version stamp of the whole comment collection, shared by all instances through Memcache.
+ * Every write to the comments bumps it, so anything derived from the comments can be tagged
+ * with the version it was built from and thrown away once the version moves on.
+ * Instances re-read the shared stamp at most every MAX_STALENESS_MILLIS, which bounds how
+ * long one instance can miss a write made on another.
+ *
+ * <p>When comments are kept in a LocalCommentStore (see Clients) the only instance that
+ * writes them is this one, so the version is a plain counter in memory and Memcache, which
+ * may not exist there, is never called.
+ */
+public final class CommentsVersion {
+
+  private static final String KEY = "comments-version";
+  private static final long MAX_STALENESS_MILLIS = 2000;
+
+  /**
+   * starts from the clock so a restarted instance never reuses an old version; replaced by
+   * the shared stamp once that has been read, and never lowered after that
+   */
+  private static long version = System.currentTimeMillis();
+  /** true once version has been taken from the shared stamp */
+  private static boolean synced;
+  private static long checkedAt;
+  private static boolean refreshing;
+
+  private CommentsVersion() {}
+
+  /**
+   * Returns the current version, at most MAX_STALENESS_MILLIS out of date. When it is due,
+   * one caller re-reads the shared stamp without holding the lock, while the others keep
+   * getting the version already known. A read that raced a bump may be older than the
+   * version the bump set, so it can only move the version forward.
+   */
+  public static long current() {
+    long now = System.currentTimeMillis();
+    synchronized (CommentsVersion.class) {
+      if (!Clients.usesDatastore() || refreshing
+          || (checkedAt != 0 && now - checkedAt < MAX_STALENESS_MILLIS)) {
+        return version;
+      }
+      refreshing = true;
+    }
+    Object shared = null;
+    try {
+      MemcacheService memcache = Clients.memcache();
+      shared = memcache.get(KEY);
+      if (shared == null) {
+        // evicted or never set; start from the clock so the stamp never goes backwards
+        memcache.put(KEY, now, null, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        shared = memcache.get(KEY);
+      }
+    } finally {
+      synchronized (CommentsVersion.class) {
+        refreshing = false;
+        if (shared != null) {
+          sync(((Number) shared).longValue());
+        }
+        checkedAt = now;
+      }
+    }
+    synchronized (CommentsVersion.class) {
+      return version;
+    }
+  }
+
+  /** Records a change to the comments. Takes effect on this instance immediately. */
+  public static long bump() {
+    Long bumped = null;
+    if (Clients.usesDatastore()) {
+      bumped = Clients.memcache().increment(KEY, 1, System.currentTimeMillis());
+    }
+    synchronized (CommentsVersion.class) {
+      if (bumped != null) {
+        sync(bumped);
+      } else {
+        // Memcache is unavailable or not used; still invalidate everything cached here
+        version++;
+      }
+      checkedAt = System.currentTimeMillis();
+      return version;
+    }
+  }
+
+  /** Takes a value of the shared stamp. Must hold the lock. */
+  private static void sync(long shared) {
+    version = synced ? Math.max(version, shared) : shared;
+    synced = true;
+  }
+}
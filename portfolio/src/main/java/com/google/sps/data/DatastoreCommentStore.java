@@ -0,0 +1,228 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.sps.services.Metrics;
+import com.google.sps.services.SentimentPipeline;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Keeps comments in Datastore. Pages are read with the projection query of commentsQuery().
+ * Every call is timed in Metrics.
+ */
+public final class DatastoreCommentStore implements CommentStore {
+
+  /** most keys Datastore takes in one batched delete */
+  private static final int MAX_BATCH_SIZE = 500;
+  private static final int MAX_TRANSACTION_ATTEMPTS = 3;
+
+  private final DatastoreService datastore;
+
+  public DatastoreCommentStore(DatastoreService datastore) {
+    this.datastore = datastore;
+  }
+
+  @Override
+  public Entity put(Entity comment) {
+    // Datastore completes the key of the entity itself
+    long start = System.nanoTime();
+    try {
+      datastore.put(comment);
+    } finally {
+      Metrics.DATASTORE_PUT.recordSince(start);
+    }
+    return comment;
+  }
+
+  @Override
+  public void put(List<Entity> comments) {
+    long start = System.nanoTime();
+    try {
+      datastore.put(comments);
+    } finally {
+      Metrics.DATASTORE_PUT.recordSince(start);
+    }
+  }
+
+  /** Runs one transaction per entity group, retried a few times on contention. */
+  @Override
+  public List<Entity> update(Collection<Key> keys, Consumer<Entity> change) {
+    Map<Key, List<Key>> keysByGroup = new LinkedHashMap<>();
+    for (Key key : keys) {
+      keysByGroup.computeIfAbsent(key.getParent(), group -> new ArrayList<>()).add(key);
+    }
+    List<Entity> updated = new ArrayList<>();
+    for (List<Key> group : keysByGroup.values()) {
+      for (int attempt = 1; ; attempt++) {
+        try {
+          updated.addAll(updateGroup(group, change));
+          break;
+        } catch (ConcurrentModificationException e) {
+          if (attempt == MAX_TRANSACTION_ATTEMPTS) {
+            throw e;
+          }
+        }
+      }
+    }
+    return updated;
+  }
+
+  private List<Entity> updateGroup(List<Key> keys, Consumer<Entity> change) {
+    Transaction transaction = datastore.beginTransaction();
+    try {
+      Map<Key, Entity> stored;
+      long start = System.nanoTime();
+      try {
+        stored = datastore.get(transaction, keys);
+      } finally {
+        Metrics.DATASTORE_GET.recordSince(start);
+      }
+      List<Entity> updated = new ArrayList<>(stored.values());
+      for (Entity comment : updated) {
+        change.accept(comment);
+      }
+      start = System.nanoTime();
+      try {
+        datastore.put(transaction, updated);
+        transaction.commit();
+      } finally {
+        Metrics.DATASTORE_PUT.recordSince(start);
+      }
+      return updated;
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  @Override
+  public Map<Key, Entity> get(Collection<Key> keys) {
+    long start = System.nanoTime();
+    try {
+      return datastore.get(keys);
+    } finally {
+      Metrics.DATASTORE_GET.recordSince(start);
+    }
+  }
+
+  /**
+   * Deletes the comments together with their cached translations, which are kept in one
+   * child entity per comment (see TranslationCache), in one batched delete per
+   * MAX_BATCH_SIZE keys.
+   */
+  @Override
+  public void delete(Collection<Key> keys) {
+    List<Key> all = new ArrayList<>(keys);
+    all.addAll(TranslationCache.translationKeys(keys));
+    for (int from = 0; from < all.size(); from += MAX_BATCH_SIZE) {
+      long start = System.nanoTime();
+      try {
+        datastore.delete(all.subList(from, Math.min(from + MAX_BATCH_SIZE, all.size())));
+      } finally {
+        Metrics.DATASTORE_DELETE.recordSince(start);
+      }
+    }
+  }
+
+  @Override
+  public Page newest(int limit, String cursor, Long before) {
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(limit);
+    Query query = commentsQuery();
+    if (cursor != null) {
+      fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+    } else if (before != null) {
+      query.setFilter(new FilterPredicate("order", FilterOperator.LESS_THAN, before));
+    }
+    long start = System.nanoTime();
+    try {
+      QueryResultList<Entity> entities = datastore.prepare(query).asQueryResultList(fetchOptions);
+      return new Page(entities, entities.getCursor().toWebSafeString());
+    } finally {
+      Metrics.DATASTORE_QUERY.recordSince(start);
+    }
+  }
+
+  /**
+   * An ancestor query on each of the user's entity groups, so a comment shows up as soon as
+   * it has been posted. The results are merged by order.
+   */
+  @Override
+  public List<Entity> postedBy(List<Key> posterKeys, int limit) {
+    List<Entity> comments = new ArrayList<>();
+    for (Key posterKey : posterKeys) {
+      Query query = new Query("Comment")
+          .setAncestor(posterKey)
+          .addSort("order", SortDirection.DESCENDING);
+      long start = System.nanoTime();
+      try {
+        comments.addAll(
+            datastore.prepare(query).asQueryResultList(FetchOptions.Builder.withLimit(limit)));
+      } finally {
+        Metrics.DATASTORE_QUERY.recordSince(start);
+      }
+    }
+    comments.sort(Comparator.comparing(
+        (Entity comment) -> (Long) comment.getProperty("order")).reversed());
+    return comments.size() > limit ? comments.subList(0, limit) : comments;
+  }
+
+  @Override
+  public List<Key> pendingSentiment(int limit) {
+    Query query = new Query("Comment")
+        .setFilter(
+            new FilterPredicate(SentimentPipeline.PENDING_PROPERTY, FilterOperator.EQUAL, true))
+        .setKeysOnly();
+    List<Key> keys = new ArrayList<>();
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(limit);
+    long start = System.nanoTime();
+    try {
+      for (Entity entity : datastore.prepare(query).asIterable(fetchOptions)) {
+        keys.add(entity.getKey());
+      }
+    } finally {
+      Metrics.DATASTORE_QUERY.recordSince(start);
+    }
+    return keys;
+  }
+
+  @Override
+  public void close() {}
+
+  /**
+   * Returns the query listing comments from newest to oldest, i.e. by descending order.
+   * It is a projection over just the properties sent to the client, so private ones like the
+   * poster's email are never read. It is served by the index in datastore-indexes.xml.
+   */
+  private static Query commentsQuery() {
+    return new Query("Comment")
+        .addProjection(new PropertyProjection("order", Long.class))
+        .addProjection(new PropertyProjection("name", String.class))
+        .addProjection(new PropertyProjection("timestamp", Long.class))
+        .addProjection(new PropertyProjection("content", String.class))
+        .addProjection(new PropertyProjection("image", String.class))
+        .addProjection(new PropertyProjection("imageCard", String.class))
+        .addProjection(new PropertyProjection("imageThumb", String.class))
+        .addProjection(new PropertyProjection("mood", String.class))
+        .addProjection(new PropertyProjection("language", String.class))
+        .addProjection(new PropertyProjection("sentiment", Double.class))
+        .addSort("order", SortDirection.DESCENDING);
+  }
+}
@@ -0,0 +1,72 @@
+package com.google.sps.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ready-to-send JSON of the newest comment page, keyed by (page size, language).
+ * Nearly all /data requests ask for this page, so serving it from memory skips the
+ * Datastore query and the translation entirely. Each page remembers the CommentsVersion
+ * it was built from and is only served while that version is still current.
+ */
+public final class FirstPageCache {
+
+  private static final int MAX_PAGES = 50;
+
+  private static final FirstPageCache INSTANCE = new FirstPageCache();
+
+  private static class Page {
+    final long version;
+    final String json;
+
+    Page(long version, String json) {
+      this.version = version;
+      this.json = json;
+    }
+  }
+
+  private final LinkedHashMap<String, Page> pages =
+      new LinkedHashMap<String, Page>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+          return size() > MAX_PAGES;
+        }
+      };
+
+  private FirstPageCache() {}
+
+  public static FirstPageCache getInstance() {
+    return INSTANCE;
+  }
+
+  /** Returns the cached page, or null if there is none for the current version. */
+  public String get(int pageSize, String language) {
+    long current = CommentsVersion.current();
+    synchronized (pages) {
+      String key = key(pageSize, language);
+      Page page = pages.get(key);
+      if (page == null) {
+        return null;
+      }
+      if (page.version != current) {
+        pages.remove(key);
+        return null;
+      }
+      return page.json;
+    }
+  }
+
+  /**
+   * Caches a page. version must be read before the page was queried, so a write that
+   * lands while the page is being built leaves it already out of date.
+   */
+  public void put(int pageSize, String language, long version, String json) {
+    synchronized (pages) {
+      pages.put(key(pageSize, language), new Page(version, json));
+    }
+  }
+
+  private static String key(int pageSize, String language) {
+    return pageSize + ":" + (language == null ? "" : language);
+  }
+}
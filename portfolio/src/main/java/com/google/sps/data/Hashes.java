@@ -0,0 +1,27 @@
+package com.google.sps.data;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** Hashing shared by the caches and key builders of this package. */
+final class Hashes {
+
+  private Hashes() {}
+
+  /** Returns the SHA-256 hash of the UTF-8 bytes of value as 64 lowercase hex digits. */
+  static String sha256Hex(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256")
+          .digest(value.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM has SHA-256
+      throw new AssertionError(e);
+    }
+  }
+}
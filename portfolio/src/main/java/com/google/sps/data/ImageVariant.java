@@ -0,0 +1,42 @@
+package com.google.sps.data;
+
+/**
+ * The sizes an uploaded comment image is served at. ImagesService makes one serving URL per
+ * upload, and each variant asks it for a size by appending a suffix to that URL ("=sN" for
+ * at most N pixels on the longest side, "=sN-c" for an N pixel square crop). The URLs are
+ * stored in their own Comment properties, so the page can load an image no bigger than the
+ * spot it is shown in.
+ */
+public enum ImageVariant {
+  /** square crop for small previews */
+  THUMBNAIL("imageThumb", "imageThumbUrl", "=s96-c"),
+  /** fits the comment card */
+  CARD("imageCard", "imageCardUrl", "=s400"),
+  /** the serving URL's default size, as served before variants existed */
+  FULL("image", "imageUrl", "");
+
+  private final String property;
+  private final String jsonName;
+  private final String suffix;
+
+  ImageVariant(String property, String jsonName, String suffix) {
+    this.property = property;
+    this.jsonName = jsonName;
+    this.suffix = suffix;
+  }
+
+  /** Returns the Comment property holding this variant's URL. */
+  public String getProperty() {
+    return property;
+  }
+
+  /** Returns the field this variant's URL is sent to the client in. */
+  public String getJsonName() {
+    return jsonName;
+  }
+
+  /** Returns the URL of this variant, given the serving URL ImagesService made. */
+  public String url(String servingUrl) {
+    return servingUrl + suffix;
+  }
+}
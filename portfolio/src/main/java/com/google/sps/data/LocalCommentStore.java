@@ -0,0 +1,467 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.sps.services.SentimentPipeline;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Keeps comments in a local file instead of Datastore, so the comment path can be profiled
+ * offline and small deployments need no Datastore at all.
+ *
+ * <p>Every put and delete is appended as a record to a memory-mapped log; deletes are written
+ * as tombstones and the latest record of a comment wins. An in-memory index from each live
+ * comment's order (a timestamp, see CommentOrder) to the offset of its record serves pages,
+ * so only the records on a page are decoded. The index is rebuilt by replaying the log when
+ * the store is opened. A record is [length, op, poster name, id, properties...]; its length
+ * is written last, after a zero length marking the new end of the log, so a record cut short
+ * by a crash reads as the end of the log. The mapped pages can still reach the disk out of
+ * order, so a record that has its length but not all of its body also ends the replay, and
+ * the next append overwrites it.
+ */
+public final class LocalCommentStore implements CommentStore {
+
+  private static final int INITIAL_CAPACITY = 16 << 20;
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+
+  private static final byte NULL_VALUE = 0;
+  private static final byte STRING_VALUE = 1;
+  private static final byte LONG_VALUE = 2;
+  private static final byte DOUBLE_VALUE = 3;
+  private static final byte BOOLEAN_VALUE = 4;
+  private static final byte TEXT_VALUE = 5;
+
+  private final FileChannel channel;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private MappedByteBuffer log;
+  /** offset where the next record is appended */
+  private int end;
+  private long lastId;
+
+  /** order -> offset of the comment's latest record, newest first */
+  private final NavigableMap<Long, Integer> offsetsByOrder =
+      new TreeMap<>(Collections.reverseOrder());
+  private final Map<Key, Long> orders = new HashMap<>();
+  /** poster key -> orders of their comments */
+  private final Map<Key, NavigableSet<Long>> ordersByPoster = new HashMap<>();
+  private final Set<Key> pending = new LinkedHashSet<>();
+
+  /** Opens the log at path, creating it if needed, and replays it into the index. */
+  public LocalCommentStore(Path path) throws IOException {
+    channel = FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    log = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+        Math.max(INITIAL_CAPACITY, Math.min(channel.size(), Integer.MAX_VALUE)));
+    replay();
+  }
+
+  @Override
+  public Entity put(Entity comment) {
+    lock.writeLock().lock();
+    try {
+      Entity stored = comment;
+      if (!comment.getKey().isComplete()) {
+        stored = new Entity(CommentKeys.commentKey(posterKey(comment.getKey()), ++lastId));
+        stored.setPropertiesFrom(comment);
+      }
+      index(stored, append(encodePut(stored)));
+      return stored;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void put(List<Entity> comments) {
+    lock.writeLock().lock();
+    try {
+      for (Entity comment : comments) {
+        put(comment);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public List<Entity> update(Collection<Key> keys, Consumer<Entity> change) {
+    lock.writeLock().lock();
+    try {
+      List<Entity> updated = new ArrayList<>();
+      for (Key key : keys) {
+        Long order = orders.get(key);
+        if (order == null) {
+          continue;
+        }
+        Entity comment = read(offsetsByOrder.get(order));
+        change.accept(comment);
+        index(comment, append(encodePut(comment)));
+        updated.add(comment);
+      }
+      return updated;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Map<Key, Entity> get(Collection<Key> keys) {
+    lock.readLock().lock();
+    try {
+      Map<Key, Entity> found = new HashMap<>();
+      for (Key key : keys) {
+        Long order = orders.get(key);
+        if (order != null) {
+          found.put(key, read(offsetsByOrder.get(order)));
+        }
+      }
+      return found;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void delete(Collection<Key> keys) {
+    lock.writeLock().lock();
+    try {
+      for (Key key : keys) {
+        if (orders.containsKey(key)) {
+          append(encodeDelete(key));
+          unindex(key);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** The cursor is simply the order of the last comment on the page. */
+  @Override
+  public Page newest(int limit, String cursor, Long before) {
+    Long start = cursor != null ? Long.valueOf(cursor) : before;
+    lock.readLock().lock();
+    try {
+      // the map is sorted newest first, so the tail holds the older comments
+      NavigableMap<Long, Integer> older =
+          start == null ? offsetsByOrder : offsetsByOrder.tailMap(start, false);
+      List<Entity> comments = new ArrayList<>();
+      Long last = start;
+      for (Map.Entry<Long, Integer> entry : older.entrySet()) {
+        if (comments.size() == limit) {
+          break;
+        }
+        comments.add(read(entry.getValue()));
+        last = entry.getKey();
+      }
+      return new Page(comments, last == null ? null : last.toString());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<Entity> postedBy(List<Key> posterKeys, int limit) {
+    lock.readLock().lock();
+    try {
+      NavigableSet<Long> posted = new TreeSet<>();
+      for (Key posterKey : posterKeys) {
+        posted.addAll(ordersByPoster.getOrDefault(posterKey, Collections.emptyNavigableSet()));
+      }
+      List<Entity> comments = new ArrayList<>();
+      for (Long order : posted.descendingSet()) {
+        if (comments.size() == limit) {
+          break;
+        }
+        comments.add(read(offsetsByOrder.get(order)));
+      }
+      return comments;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<Key> pendingSentiment(int limit) {
+    lock.readLock().lock();
+    try {
+      List<Key> keys = new ArrayList<>();
+      for (Key key : pending) {
+        if (keys.size() == limit) {
+          break;
+        }
+        keys.add(key);
+      }
+      return keys;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    lock.writeLock().lock();
+    try {
+      log.force();
+      channel.close();
+    } catch (IOException e) {
+      System.err.println("Could not close the local comment store: " + e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void replay() {
+    int offset = 0;
+    while (offset + Integer.BYTES <= log.capacity()) {
+      int length = log.getInt(offset);
+      if (length <= 0 || offset + Integer.BYTES + length > log.capacity()) {
+        break;
+      }
+      int body = offset + Integer.BYTES;
+      try {
+        byte op = log.get(body);
+        if (op == PUT) {
+          Entity comment = read(offset);
+          if (!(comment.getProperty("order") instanceof Long)) {
+            throw new IllegalStateException("Comment has no order: " + comment.getKey());
+          }
+          lastId = Math.max(lastId, comment.getKey().getId());
+          index(comment, offset);
+        } else if (op == DELETE) {
+          unindex(readKey(new int[] {body + 1}));
+        } else {
+          throw new IllegalStateException("Unknown record type " + op);
+        }
+      } catch (RuntimeException e) {
+        // the log was cut short by a crash here
+        System.err.println("Ignoring a torn record at " + offset + " of the local store: " + e);
+        break;
+      }
+      offset = body + length;
+    }
+    end = offset;
+  }
+
+  /** Appends a record and returns its offset. */
+  private int append(byte[] body) {
+    int offset = end;
+    // room for the record and for the zero length that marks the end of the log
+    ensureCapacity((long) offset + Integer.BYTES + body.length + Integer.BYTES);
+    ByteBuffer view = log.duplicate();
+    view.position(offset + Integer.BYTES);
+    view.put(body);
+    end = offset + Integer.BYTES + body.length;
+    // whatever follows may be left over from a torn record
+    log.putInt(end, 0);
+    log.putInt(offset, body.length);
+    return offset;
+  }
+
+  private void ensureCapacity(long needed) {
+    if (needed <= log.capacity()) {
+      return;
+    }
+    if (needed > Integer.MAX_VALUE) {
+      throw new IllegalStateException("The local comment store is full");
+    }
+    long capacity = Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * log.capacity()));
+    try {
+      log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not grow the local comment store", e);
+    }
+  }
+
+  private void index(Entity comment, int offset) {
+    Key key = comment.getKey();
+    unindex(key);
+    Long order = (Long) comment.getProperty("order");
+    offsetsByOrder.put(order, offset);
+    orders.put(key, order);
+    ordersByPoster.computeIfAbsent(posterKey(key), poster -> new TreeSet<>()).add(order);
+    if (Boolean.TRUE.equals(comment.getProperty(SentimentPipeline.PENDING_PROPERTY))) {
+      pending.add(key);
+    }
+  }
+
+  private void unindex(Key key) {
+    pending.remove(key);
+    Long order = orders.remove(key);
+    if (order == null) {
+      return;
+    }
+    offsetsByOrder.remove(order);
+    NavigableSet<Long> posted = ordersByPoster.get(posterKey(key));
+    posted.remove(order);
+    if (posted.isEmpty()) {
+      ordersByPoster.remove(posterKey(key));
+    }
+  }
+
+  private static Key posterKey(Key key) {
+    Key parent = key.getParent();
+    if (parent == null || parent.getName() == null) {
+      throw new IllegalArgumentException("Not a comment key, see CommentKeys: " + key);
+    }
+    return parent;
+  }
+
+  private static byte[] encodePut(Entity comment) {
+    if (!(comment.getProperty("order") instanceof Long)) {
+      throw new IllegalArgumentException("Comment has no order: " + comment.getKey());
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(PUT);
+      writeKey(out, comment.getKey());
+      Map<String, Object> properties = comment.getProperties();
+      out.writeInt(properties.size());
+      for (Map.Entry<String, Object> property : properties.entrySet()) {
+        writeString(out, property.getKey());
+        writeValue(out, property.getValue());
+      }
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      // ByteArrayOutputStream doesn't throw
+      throw new AssertionError(e);
+    }
+  }
+
+  private static byte[] encodeDelete(Key key) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(DELETE);
+      writeKey(out, key);
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void writeKey(DataOutputStream out, Key key) throws IOException {
+    writeString(out, posterKey(key).getName());
+    out.writeLong(key.getId());
+  }
+
+  private static void writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL_VALUE);
+    } else if (value instanceof String) {
+      out.writeByte(STRING_VALUE);
+      writeString(out, (String) value);
+    } else if (value instanceof Long || value instanceof Integer
+        || value instanceof Short || value instanceof Byte) {
+      out.writeByte(LONG_VALUE);
+      out.writeLong(((Number) value).longValue());
+    } else if (value instanceof Double || value instanceof Float) {
+      // Datastore also stores floats as doubles
+      out.writeByte(DOUBLE_VALUE);
+      out.writeDouble(((Number) value).doubleValue());
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN_VALUE);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Text) {
+      out.writeByte(TEXT_VALUE);
+      writeString(out, ((Text) value).getValue());
+    } else {
+      throw new IllegalArgumentException("Can't store " + value.getClass() + " locally");
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(utf8.length);
+    out.write(utf8);
+  }
+
+  /** Decodes the put record at offset into a new entity. */
+  private Entity read(int offset) {
+    // position[0] is where the next field starts
+    int[] position = {offset + Integer.BYTES + 1};
+    Entity comment = new Entity(readKey(position));
+    int count = log.getInt(position[0]);
+    position[0] += Integer.BYTES;
+    for (int i = 0; i < count; i++) {
+      String name = readString(position);
+      comment.setProperty(name, readValue(position));
+    }
+    return comment;
+  }
+
+  private Key readKey(int[] position) {
+    String poster = readString(position);
+    long id = log.getLong(position[0]);
+    position[0] += Long.BYTES;
+    return CommentKeys.commentKey(KeyFactory.createKey("Poster", poster), id);
+  }
+
+  private Object readValue(int[] position) {
+    byte type = log.get(position[0]++);
+    switch (type) {
+      case NULL_VALUE:
+        return null;
+      case STRING_VALUE:
+        return readString(position);
+      case LONG_VALUE:
+        long longValue = log.getLong(position[0]);
+        position[0] += Long.BYTES;
+        return longValue;
+      case DOUBLE_VALUE:
+        double doubleValue = log.getDouble(position[0]);
+        position[0] += Double.BYTES;
+        return doubleValue;
+      case BOOLEAN_VALUE:
+        return log.get(position[0]++) != 0;
+      case TEXT_VALUE:
+        return new Text(readString(position));
+      default:
+        throw new IllegalStateException("Corrupt local comment store at " + (position[0] - 1));
+    }
+  }
+
+  private String readString(int[] position) {
+    int length = log.getInt(position[0]);
+    if (length < 0 || (long) position[0] + Integer.BYTES + length > log.capacity()) {
+      throw new IllegalStateException("Corrupt local comment store at " + position[0]);
+    }
+    byte[] utf8 = new byte[length];
+    // a view of its own, so concurrent readers don't share a position
+    ByteBuffer view = log.duplicate();
+    view.position(position[0] + Integer.BYTES);
+    view.get(utf8);
+    position[0] += Integer.BYTES + length;
+    return new String(utf8, StandardCharsets.UTF_8);
+  }
+}
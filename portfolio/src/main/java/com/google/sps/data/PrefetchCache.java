@@ -0,0 +1,80 @@
+package com.google.sps.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Comment pages fetched ahead of time, keyed by (position, page size, language), where the
+ * position is a keyset order. A request for a later page also queries and translates the page
+ * after it and leaves it here, so the next click on "next" can be answered from memory.
+ * Pages expire after TTL_MILLIS and are dropped as soon as the comments change.
+ */
+public final class PrefetchCache {
+
+  private static final long TTL_MILLIS = 30 * 1000;
+  private static final int MAX_PAGES = 100;
+
+  private static final PrefetchCache INSTANCE = new PrefetchCache();
+
+  /** A prefetched page. */
+  public static final class Page {
+    private final long version;
+    private final long expiresAt;
+    private final String json;
+
+    private Page(long version, long expiresAt, String json) {
+      this.version = version;
+      this.expiresAt = expiresAt;
+      this.json = json;
+    }
+
+    public String getJson() {
+      return json;
+    }
+  }
+
+  private final LinkedHashMap<String, Page> pages =
+      new LinkedHashMap<String, Page>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+          return size() > MAX_PAGES;
+        }
+      };
+
+  private PrefetchCache() {}
+
+  public static PrefetchCache getInstance() {
+    return INSTANCE;
+  }
+
+  /** Returns the prefetched page, or null if it is missing, expired or out of date. */
+  public Page get(String position, int pageSize, String language) {
+    long current = CommentsVersion.current();
+    long now = System.currentTimeMillis();
+    synchronized (pages) {
+      String key = key(position, pageSize, language);
+      Page page = pages.get(key);
+      if (page == null) {
+        return null;
+      }
+      if (page.version != current || page.expiresAt < now) {
+        pages.remove(key);
+        return null;
+      }
+      return page;
+    }
+  }
+
+  /** Caches a page. version must be read before the page was queried. */
+  public void put(String position, int pageSize, String language, long version, String json) {
+    long expiresAt = System.currentTimeMillis() + TTL_MILLIS;
+    Page page = new Page(version, expiresAt, json);
+    synchronized (pages) {
+      pages.put(key(position, pageSize, language), page);
+    }
+  }
+
+  private static String key(String position, int pageSize, String language) {
+    return position + ":" + pageSize + ":" + (language == null ? "" : language);
+  }
+}
@@ -0,0 +1,132 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.sps.services.Metrics;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Caches sentiment scores by comment text, so the many identical short comments ("nice!")
+ * are only scored once. Texts are looked up by contentHash(), a hash of the text with case,
+ * Unicode form and whitespace normalized. Lookups go to a bounded in-memory LRU first and
+ * then to "SentimentScore" entities in Datastore, keyed by the hash. Every method takes a
+ * null datastore to mean the memory tier only, e.g. when comments are kept locally.
+ */
+public final class SentimentCache {
+
+  private static final String KIND = "SentimentScore";
+  private static final int MAX_CACHED_SCORES = 10000;
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  private static final SentimentCache INSTANCE = new SentimentCache(MAX_CACHED_SCORES);
+
+  /** content hash -> score, least recently used first */
+  private final LinkedHashMap<String, Float> memory;
+
+  private SentimentCache(final int maxEntries) {
+    this.memory = new LinkedHashMap<String, Float>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Float> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  public static SentimentCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the hash texts are cached by. Texts that differ only in case, Unicode
+   * normalization form or spacing get the same hash.
+   */
+  public static String contentHash(String content) {
+    String normalized = WHITESPACE
+        .matcher(Normalizer.normalize(content, Normalizer.Form.NFKC).trim())
+        .replaceAll(" ")
+        .toLowerCase(Locale.ROOT);
+    return Hashes.sha256Hex(normalized);
+  }
+
+  /** Returns the score remembered on this instance, or null; never makes a remote call. */
+  public Float getCached(String contentHash) {
+    synchronized (memory) {
+      return memory.get(contentHash);
+    }
+  }
+
+  /**
+   * Returns the cached scores of the given content hashes.
+   * Hashes with no cached score are left out of the returned map.
+   */
+  public Map<String, Float> getAll(DatastoreService datastore, Collection<String> hashes) {
+    Map<String, Float> found = new HashMap<>();
+    List<Key> misses = new ArrayList<>();
+    synchronized (memory) {
+      for (String hash : hashes) {
+        Float score = memory.get(hash);
+        if (score != null) {
+          found.put(hash, score);
+        } else {
+          misses.add(KeyFactory.createKey(KIND, hash));
+        }
+      }
+    }
+    if (misses.isEmpty() || datastore == null) {
+      return found;
+    }
+
+    Map<String, Float> stored = new HashMap<>();
+    Map<Key, Entity> entities;
+    long start = System.nanoTime();
+    try {
+      entities = datastore.get(misses);
+    } finally {
+      Metrics.DATASTORE_GET.recordSince(start);
+    }
+    for (Entity entity : entities.values()) {
+      stored.put(entity.getKey().getName(), ((Number) entity.getProperty("score")).floatValue());
+    }
+    remember(stored);
+    found.putAll(stored);
+    return found;
+  }
+
+  /** Stores freshly computed scores in both tiers. */
+  public void putAll(DatastoreService datastore, Map<String, Float> scores) {
+    if (scores.isEmpty()) {
+      return;
+    }
+    if (datastore != null) {
+      List<Entity> entities = new ArrayList<>();
+      for (Map.Entry<String, Float> score : scores.entrySet()) {
+        Entity entity = new Entity(KIND, score.getKey());
+        entity.setUnindexedProperty("score", score.getValue());
+        entities.add(entity);
+      }
+      long start = System.nanoTime();
+      try {
+        datastore.put(entities);
+      } finally {
+        Metrics.DATASTORE_PUT.recordSince(start);
+      }
+    }
+    remember(scores);
+  }
+
+  private void remember(Map<String, Float> scores) {
+    synchronized (memory) {
+      memory.putAll(scores);
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.sps.services.Metrics;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches translated comment contents by (comment key, target language).
+ * A comment never changes after it is posted, so a translation stays valid until the
+ * comment is deleted. Lookups go to a bounded in-memory LRU first and then to Datastore,
+ * where all translations of a comment are kept in one "Translations" child entity with an
+ * unindexed property per language. So any language can be cached, and the stored
+ * translations of a comment are named by one key, without querying for them.
+ * Every method takes a null datastore to mean the memory tier only, e.g. when comments
+ * are kept in a LocalCommentStore.
+ */
+public final class TranslationCache {
+
+  private static final String KIND = "Translations";
+  private static final String NAME = "all";
+  private static final int MAX_CACHED_COMMENTS = 1000;
+  /** most keys Datastore takes in one batched delete */
+  private static final int MAX_BATCH_SIZE = 500;
+
+  private static final TranslationCache INSTANCE = new TranslationCache(MAX_CACHED_COMMENTS);
+
+  /** comment key -> (language -> translated text), least recently used first */
+  private final LinkedHashMap<Key, Map<String, String>> memory;
+
+  private TranslationCache(final int maxEntries) {
+    this.memory = new LinkedHashMap<Key, Map<String, String>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Map<String, String>> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /** Returns the cache shared by all servlets on this instance. */
+  public static TranslationCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the cached translations of the given comments into language.
+   * Comments with no cached translation are left out of the returned map.
+   */
+  public Map<Key, String> getAll(
+      DatastoreService datastore, Collection<Key> commentKeys, String language) {
+    Map<Key, String> found = new HashMap<>();
+    List<Key> misses = new ArrayList<>();
+    synchronized (memory) {
+      for (Key commentKey : commentKeys) {
+        Map<String, String> byLanguage = memory.get(commentKey);
+        String text = byLanguage == null ? null : byLanguage.get(language);
+        if (text != null) {
+          found.put(commentKey, text);
+        } else {
+          misses.add(translationKey(commentKey));
+        }
+      }
+    }
+    if (misses.isEmpty() || datastore == null) {
+      return found;
+    }
+
+    // one batched get for everything the memory tier didn't have
+    Map<Key, Entity> entities;
+    long start = System.nanoTime();
+    try {
+      entities = datastore.get(misses);
+    } finally {
+      Metrics.DATASTORE_GET.recordSince(start);
+    }
+    synchronized (memory) {
+      for (Entity entity : entities.values()) {
+        // the other languages come along for free, so keep them too
+        for (Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
+          byLanguage(entity.getParent())
+              .put(property.getKey(), ((Text) property.getValue()).getValue());
+        }
+        Text text = (Text) entity.getProperty(language);
+        if (text != null) {
+          found.put(entity.getParent(), text.getValue());
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Stores freshly translated comments in both tiers. The stored entities are read first, in
+   * one batched get, so the translations into other languages are kept; if two languages of a
+   * comment are stored at the same time one may be lost, and is just translated again.
+   */
+  public void putAll(DatastoreService datastore, Map<Key, String> translations, String language) {
+    if (translations.isEmpty()) {
+      return;
+    }
+    if (datastore != null) {
+      List<Key> keys = new ArrayList<>();
+      for (Key commentKey : translations.keySet()) {
+        keys.add(translationKey(commentKey));
+      }
+      Map<Key, Entity> stored;
+      long start = System.nanoTime();
+      try {
+        stored = datastore.get(keys);
+      } finally {
+        Metrics.DATASTORE_GET.recordSince(start);
+      }
+      List<Entity> entities = new ArrayList<>();
+      for (Map.Entry<Key, String> translation : translations.entrySet()) {
+        Key key = translationKey(translation.getKey());
+        Entity entity = stored.containsKey(key) ? stored.get(key) : new Entity(key);
+        entity.setUnindexedProperty(language, new Text(translation.getValue()));
+        entities.add(entity);
+      }
+      start = System.nanoTime();
+      try {
+        datastore.put(entities);
+      } finally {
+        Metrics.DATASTORE_PUT.recordSince(start);
+      }
+    }
+    synchronized (memory) {
+      for (Map.Entry<Key, String> translation : translations.entrySet()) {
+        byLanguage(translation.getKey()).put(language, translation.getValue());
+      }
+    }
+  }
+
+  /**
+   * Drops every cached translation of the given comments, e.g. when they are deleted.
+   * The stored translations are removed with batched deletes of their keys, one per comment,
+   * without reading them first.
+   */
+  public void invalidate(DatastoreService datastore, Collection<Key> commentKeys) {
+    synchronized (memory) {
+      memory.keySet().removeAll(commentKeys);
+    }
+    if (datastore == null) {
+      return;
+    }
+    List<Key> keys = translationKeys(commentKeys);
+    for (int from = 0; from < keys.size(); from += MAX_BATCH_SIZE) {
+      long start = System.nanoTime();
+      try {
+        datastore.delete(keys.subList(from, Math.min(from + MAX_BATCH_SIZE, keys.size())));
+      } finally {
+        Metrics.DATASTORE_DELETE.recordSince(start);
+      }
+    }
+  }
+
+  /** Returns the keys of the entities the translations of the given comments are kept in. */
+  public static List<Key> translationKeys(Collection<Key> commentKeys) {
+    List<Key> keys = new ArrayList<>();
+    for (Key commentKey : commentKeys) {
+      keys.add(translationKey(commentKey));
+    }
+    return keys;
+  }
+
+  /** Returns the cached translations of a comment by language. Must hold the memory lock. */
+  private Map<String, String> byLanguage(Key commentKey) {
+    Map<String, String> byLanguage = memory.get(commentKey);
+    if (byLanguage == null) {
+      byLanguage = new HashMap<>();
+      memory.put(commentKey, byLanguage);
+    }
+    return byLanguage;
+  }
+
+  private static Key translationKey(Key commentKey) {
+    return KeyFactory.createKey(commentKey, KIND, NAME);
+  }
+}
@@ -0,0 +1,106 @@
+package com.google.sps.services;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stops calling a service that keeps failing. After failureThreshold failures in a row the
+ * breaker opens and allowRequest() refuses calls for a cool-down period; then a single trial
+ * call is let through, which closes the breaker if it succeeds and reopens it if it fails.
+ * Callers report the outcome of every call they were allowed to make, either directly or
+ * through a Call.
+ */
+public final class CircuitBreaker {
+
+  private final String name;
+  private final int failureThreshold;
+  private final long openNanos;
+
+  private int consecutiveFailures;
+  private boolean open;
+  private long openedAt;
+  private boolean trialInFlight;
+
+  public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.openNanos = openMillis * 1000 * 1000;
+  }
+
+  /**
+   * One call to the service, whose outcome is reported once: by whoever learns it first, the
+   * call itself or a caller that gave up waiting and reports it as failed. A call that ends
+   * after that is ignored, so a late success doesn't close the breaker the timeout opened.
+   */
+  public final class Call {
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    private Call() {}
+
+    /** Returns true if the call may be made now; a refused call is settled without an outcome. */
+    public boolean tryStart() {
+      if (settled.get()) {
+        return false;
+      }
+      if (allowRequest()) {
+        return true;
+      }
+      settled.set(true);
+      return false;
+    }
+
+    /** Returns true if the outcome was reported already, or the call was refused. */
+    public boolean isSettled() {
+      return settled.get();
+    }
+
+    public void succeeded() {
+      if (settled.compareAndSet(false, true)) {
+        recordSuccess();
+      }
+    }
+
+    public void failed() {
+      if (settled.compareAndSet(false, true)) {
+        recordFailure();
+      }
+    }
+  }
+
+  public Call newCall() {
+    return new Call();
+  }
+
+  /** Returns true if the service may be called now. */
+  public synchronized boolean allowRequest() {
+    if (!open) {
+      return true;
+    }
+    if (trialInFlight || System.nanoTime() - openedAt < openNanos) {
+      return false;
+    }
+    trialInFlight = true;
+    return true;
+  }
+
+  public synchronized void recordSuccess() {
+    if (open) {
+      System.err.println("Closing the " + name + " circuit");
+    }
+    consecutiveFailures = 0;
+    open = false;
+    trialInFlight = false;
+  }
+
+  public synchronized void recordFailure() {
+    consecutiveFailures++;
+    if (trialInFlight || (!open && consecutiveFailures >= failureThreshold)) {
+      if (!open) {
+        System.err.println("Opening the " + name + " circuit after "
+            + consecutiveFailures + " failures in a row");
+      }
+      open = true;
+      openedAt = System.nanoTime();
+      trialInFlight = false;
+    }
+  }
+}
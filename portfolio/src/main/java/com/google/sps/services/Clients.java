@@ -0,0 +1,172 @@
+package com.google.sps.services;
+
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.cloud.language.v1.LanguageServiceClient;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.translate.Translate;
+import com.google.cloud.translate.TranslateOptions;
+import com.google.sps.data.CommentStore;
+import com.google.sps.data.DatastoreCommentStore;
+import com.google.sps.data.LocalCommentStore;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+
+/**
+ * Registry of the cloud clients used by the servlets. Every client is created once per
+ * instance and shared across requests; all of them are safe to use from several threads.
+ * warmUp() creates them ahead of the first user request.
+ *
+ * <p>Comments are kept in Datastore unless the system property comments.store is "local",
+ * in which case they go to a LocalCommentStore at comments.store.path and Datastore isn't
+ * used at all.
+ */
+public final class Clients {
+
+  private static final String STORE_PROPERTY = "comments.store";
+  private static final String STORE_PATH_PROPERTY = "comments.store.path";
+  private static final String DEFAULT_STORE_PATH = "comments.log";
+
+  private static volatile Translate translate;
+  private static volatile LanguageServiceClient languageService;
+  private static volatile Storage storage;
+  private static volatile CommentStore comments;
+
+  private Clients() {}
+
+  public static DatastoreService datastore() {
+    return DatastoreServiceFactory.getDatastoreService();
+  }
+
+  /** Returns where comments are kept, see the class comment. */
+  public static CommentStore comments() {
+    if (comments == null) {
+      synchronized (Clients.class) {
+        if (comments == null) {
+          comments = usesDatastore() ? new DatastoreCommentStore(datastore()) : openLocalStore();
+        }
+      }
+    }
+    return comments;
+  }
+
+  /** Returns false when comments are kept locally, so nothing should touch Datastore. */
+  public static boolean usesDatastore() {
+    return !"local".equals(System.getProperty(STORE_PROPERTY));
+  }
+
+  /**
+   * Returns Datastore for the caches that keep a durable copy there,
+   * or null if Datastore isn't used.
+   */
+  public static DatastoreService cacheDatastore() {
+    return usesDatastore() ? datastore() : null;
+  }
+
+  private static CommentStore openLocalStore() {
+    String path = System.getProperty(STORE_PATH_PROPERTY, DEFAULT_STORE_PATH);
+    try {
+      return new LocalCommentStore(Paths.get(path));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not open local comment store " + path, e);
+    }
+  }
+
+  public static BlobstoreService blobstore() {
+    return BlobstoreServiceFactory.getBlobstoreService();
+  }
+
+  public static ImagesService images() {
+    return ImagesServiceFactory.getImagesService();
+  }
+
+  public static MemcacheService memcache() {
+    return MemcacheServiceFactory.getMemcacheService();
+  }
+
+  public static UserService users() {
+    return UserServiceFactory.getUserService();
+  }
+
+  public static Translate translate() {
+    if (translate == null) {
+      synchronized (Clients.class) {
+        if (translate == null) {
+          translate = TranslateOptions.getDefaultInstance().getService();
+        }
+      }
+    }
+    return translate;
+  }
+
+  public static Storage storage() {
+    if (storage == null) {
+      synchronized (Clients.class) {
+        if (storage == null) {
+          storage = StorageOptions.getDefaultInstance().getService();
+        }
+      }
+    }
+    return storage;
+  }
+
+  /** Returns the shared Natural Language client; its gRPC channels are set up only once. */
+  public static LanguageServiceClient language() {
+    if (languageService == null) {
+      synchronized (Clients.class) {
+        if (languageService == null) {
+          try {
+            languageService = LanguageServiceClient.create();
+          } catch (IOException e) {
+            throw new UncheckedIOException("Could not create LanguageServiceClient", e);
+          }
+        }
+      }
+    }
+    return languageService;
+  }
+
+  /**
+   * Uses the given Translate and Natural Language clients instead of the cloud ones,
+   * e.g. local stand-ins in benchmarks. Must be called before they are first used.
+   */
+  public static synchronized void useClients(
+      Translate translateClient, LanguageServiceClient languageClient) {
+    translate = translateClient;
+    languageService = languageClient;
+  }
+
+  /** Creates every client so the first request on a new instance doesn't pay for it. */
+  public static void warmUp() {
+    comments();
+    blobstore();
+    images();
+    memcache();
+    users();
+    translate();
+    storage();
+    language();
+  }
+
+  /** Releases the clients that hold connections. Called when the webapp stops. */
+  public static synchronized void close() {
+    if (comments != null) {
+      comments.close();
+      comments = null;
+    }
+    if (languageService != null) {
+      languageService.close();
+      languageService = null;
+    }
+  }
+}
@@ -0,0 +1,342 @@
+package com.google.sps.services;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.gson.stream.JsonWriter;
+import com.google.sps.data.CommentJson;
+import com.google.sps.data.CommentsVersion;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tells browsers about comment changes through long polls of /comment-events. App Engine
+ * standard buffers a whole response before sending it, so a stream (e.g. Server-Sent Events)
+ * would only arrive when the request ends; instead every poll is answered once, as soon as
+ * there is something to tell or after POLL_TIMEOUT_MILLIS, and the client polls again.
+ * A waiting poll is a parked AsyncContext and holds no thread.
+ *
+ * <p>Every write bumps the CommentsVersion and publishes what it did under the new version:
+ * "insert" with the comment, "delete" with its id, or "update" with a new sentiment score.
+ * The events of a version are kept in Memcache, so every instance can tell its clients about
+ * writes made anywhere, and in a bounded map here. The cursor of a poll is the version its
+ * client has seen. Only when the events of a version are missing, e.g. evicted, or never
+ * published because the write was a migration, is the client told the comments "changed"
+ * so it refetches them.
+ *
+ * <p>There is no background thread to watch the version on automatic scaling, so every poll
+ * checks it and answers the waiting polls too if it has moved; with clients polling at least
+ * every POLL_TIMEOUT_MILLIS, a write elsewhere reaches everyone within that time.
+ */
+public final class CommentEvents {
+
+  private static final long POLL_TIMEOUT_MILLIS = 20 * 1000;
+  /** versions whose events are kept here; a client further behind refetches instead */
+  private static final int MAX_BUFFERED_VERSIONS = 100;
+  private static final int EXPIRATION_SECONDS = 10 * 60;
+  private static final String KEY_PREFIX = "comment-events-";
+  private static final String CHANGED = "{\"type\":\"changed\"}";
+
+  private static final CommentEvents INSTANCE = new CommentEvents();
+
+  /** the comma-separated JSON events of recent versions; guarded by this */
+  private final LinkedHashMap<Long, String> recent = new LinkedHashMap<Long, String>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+      return size() > MAX_BUFFERED_VERSIONS;
+    }
+  };
+  /** polls waiting for something to tell, with the version they asked from; guarded by this */
+  private final Map<AsyncContext, Long> waiting = new HashMap<>();
+  /** the latest CommentsVersion known here; guarded by this */
+  private long lastVersion;
+
+  private CommentEvents() {}
+
+  public static CommentEvents getInstance() {
+    return INSTANCE;
+  }
+
+  /** Ends the waiting polls, e.g. when the instance shuts down; their clients poll again. */
+  public void stop() {
+    List<AsyncContext> stopped;
+    synchronized (this) {
+      stopped = new ArrayList<>(waiting.keySet());
+      waiting.clear();
+    }
+    for (AsyncContext poll : stopped) {
+      poll.complete();
+    }
+  }
+
+  /**
+   * Answers a poll from the given cursor, or null for a first poll: right away if there is
+   * something to tell, otherwise once there is or the poll times out.
+   */
+  public void poll(HttpServletRequest request, HttpServletResponse response, String cursor)
+      throws IOException {
+    long version = CommentsVersion.current();
+    Long from = parse(cursor);
+    boolean moved;
+    // the oldest version some poll here needs the events after
+    long fetchFrom = from == null ? version : from;
+    synchronized (this) {
+      moved = version > lastVersion;
+      lastVersion = Math.max(lastVersion, version);
+      if (moved) {
+        // e.g. a write on another instance the polls waiting here haven't been told about
+        for (long waitingFrom : waiting.values()) {
+          fetchFrom = Math.min(fetchFrom, waitingFrom);
+        }
+      }
+    }
+    fetch(fetchFrom, version);
+    String answer;
+    synchronized (this) {
+      answer = from == null ? answer(version, version, true) : answer(from, version, false);
+      if (answer == null) {
+        AsyncContext poll = request.startAsync();
+        poll.setTimeout(POLL_TIMEOUT_MILLIS);
+        poll.addListener(new TimeoutListener());
+        waiting.put(poll, from);
+      }
+    }
+    if (moved) {
+      answerWaiting();
+    }
+    if (answer != null) {
+      response.getWriter().write(answer);
+    }
+  }
+
+  /** Tells clients about a newly stored comment; version is the one its write bumped to. */
+  public void publishInsert(long version, Entity comment) {
+    StringWriter data = new StringWriter();
+    try {
+      JsonWriter writer = new JsonWriter(data);
+      writer.setSerializeNulls(false);
+      String content = (String) comment.getProperty("content");
+      writer.beginObject();
+      writer.name("type").value("insert");
+      writer.name("comment");
+      CommentJson.write(writer, comment, content);
+      writer.endObject();
+      writer.flush();
+    } catch (IOException e) {
+      // StringWriter doesn't throw
+      throw new AssertionError(e);
+    }
+    publish(version, data.toString());
+  }
+
+  /** Tells clients that comments were deleted; the ids are the keys, as in CommentJson. */
+  public void publishDeletes(long version, Collection<Key> commentKeys) {
+    List<String> events = new ArrayList<>();
+    for (Key commentKey : commentKeys) {
+      events.add("{\"type\":\"delete\",\"id\":\"" + KeyFactory.keyToString(commentKey) + "\"}");
+    }
+    publish(version, String.join(",", events));
+  }
+
+  /** Tells clients the sentiment scores the comments were given. */
+  public void publishSentiments(long version, Collection<Entity> comments) {
+    List<String> events = new ArrayList<>();
+    for (Entity comment : comments) {
+      float sentiment = ((Number) comment.getProperty("sentiment")).floatValue();
+      events.add("{\"type\":\"update\",\"id\":\"" + KeyFactory.keyToString(comment.getKey())
+          + "\",\"sentiment\":" + sentiment + "}");
+    }
+    publish(version, String.join(",", events));
+  }
+
+  private void publish(long version, String events) {
+    synchronized (this) {
+      recent.put(version, events);
+      lastVersion = Math.max(lastVersion, version);
+    }
+    if (Clients.usesDatastore()) {
+      try {
+        Clients.memcache()
+            .put(KEY_PREFIX + version, events, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+      } catch (RuntimeException e) {
+        // clients of other instances are told the comments changed instead
+        System.err.println("Could not publish comment events of version " + version + ": " + e);
+      }
+    }
+    answerWaiting();
+  }
+
+  /**
+   * Copies the events of the versions after from, up to and including to, that aren't known
+   * here yet from Memcache, with one batched read.
+   */
+  private void fetch(long from, long to) {
+    if (to <= from || !Clients.usesDatastore()) {
+      return;
+    }
+    long first = Math.max(from, to - MAX_BUFFERED_VERSIONS) + 1;
+    List<String> keys = new ArrayList<>();
+    synchronized (this) {
+      for (long version = first; version <= to; version++) {
+        if (!recent.containsKey(version)) {
+          keys.add(KEY_PREFIX + version);
+        }
+      }
+    }
+    if (keys.isEmpty()) {
+      return;
+    }
+    Map<String, Object> found;
+    try {
+      found = Clients.memcache().getAll(keys);
+    } catch (RuntimeException e) {
+      System.err.println("Could not read comment events: " + e);
+      return;
+    }
+    synchronized (this) {
+      for (long version = first; version <= to; version++) {
+        Object events = found.get(KEY_PREFIX + version);
+        if (events != null) {
+          recent.put(version, (String) events);
+        }
+      }
+    }
+  }
+
+  /** Answers every waiting poll that now has something to tell. */
+  private void answerWaiting() {
+    Map<AsyncContext, String> answers = new HashMap<>();
+    synchronized (this) {
+      for (Map.Entry<AsyncContext, Long> poll : waiting.entrySet()) {
+        String answer = answer(poll.getValue(), lastVersion, false);
+        if (answer != null) {
+          answers.put(poll.getKey(), answer);
+        }
+      }
+      waiting.keySet().removeAll(answers.keySet());
+    }
+    for (Map.Entry<AsyncContext, String> answer : answers.entrySet()) {
+      send(answer.getKey(), answer.getValue());
+    }
+  }
+
+  /**
+   * Returns the JSON answer to a poll from version from, given the current version, or null
+   * if there is nothing to tell yet. The newest versions may be bumped but not published
+   * yet, so a poll waits for those; a missing version before one that is known, or one still
+   * missing in a last answer, tells the client the comments changed. Must hold the lock.
+   */
+  private String answer(long from, long version, boolean last) {
+    if (version <= from) {
+      return last ? answer(new ArrayList<>(), from) : null;
+    }
+    if (version - from > MAX_BUFFERED_VERSIONS) {
+      return changed(version);
+    }
+    List<String> told = new ArrayList<>();
+    long seen = from;
+    for (long next = from + 1; next <= version; next++) {
+      String events = recent.get(next);
+      if (events == null) {
+        break;
+      }
+      if (!events.isEmpty()) {
+        told.add(events);
+      }
+      seen = next;
+    }
+    if (seen < version && (last || knowsAny(seen + 1, version))) {
+      return changed(version);
+    }
+    if (seen == from) {
+      return last ? answer(told, from) : null;
+    }
+    return answer(told, seen);
+  }
+
+  /** Returns true if the events of any version from first to last are known here. */
+  private boolean knowsAny(long first, long last) {
+    for (long version = first; version <= last; version++) {
+      if (recent.containsKey(version)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String changed(long version) {
+    return answer(Collections.singletonList(CHANGED), version);
+  }
+
+  private static String answer(List<String> events, long next) {
+    return "{\"events\":[" + String.join(",", events) + "],\"next\":\"" + next + "\"}";
+  }
+
+  /** Returns the version a cursor stands for, or null if there is none. */
+  private static Long parse(String cursor) {
+    if (cursor == null) {
+      return null;
+    }
+    try {
+      return Long.parseLong(cursor);
+    } catch (NumberFormatException e) {
+      // e.g. a cursor of an older release; start over like a first poll
+      return null;
+    }
+  }
+
+  private static void send(AsyncContext poll, String answer) {
+    try {
+      poll.getResponse().getWriter().write(answer);
+      poll.complete();
+    } catch (IOException | IllegalStateException e) {
+      // the client went away or the poll timed out meanwhile
+    }
+  }
+
+  /** Answers a poll that had nothing to tell before its timeout. */
+  private final class TimeoutListener implements AsyncListener {
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      AsyncContext poll = event.getAsyncContext();
+      String answer;
+      synchronized (CommentEvents.this) {
+        Long from = waiting.remove(poll);
+        if (from == null) {
+          return;
+        }
+        // from what is known here; the next poll reads the version and events afresh
+        answer = answer(from, lastVersion, true);
+      }
+      send(poll, answer);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      synchronized (CommentEvents.this) {
+        waiting.remove(event.getAsyncContext());
+      }
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      onComplete(event);
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+  }
+}
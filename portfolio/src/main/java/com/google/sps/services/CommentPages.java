@@ -0,0 +1,334 @@
+package com.google.sps.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.cloud.translate.Translate;
+import com.google.cloud.translate.TranslateException;
+import com.google.cloud.translate.Translation;
+import com.google.gson.stream.JsonWriter;
+import com.google.sps.data.CommentJson;
+import com.google.sps.data.CommentStore;
+import com.google.sps.data.CommentsVersion;
+import com.google.sps.data.FirstPageCache;
+import com.google.sps.data.TranslationCache;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Queries, translates and renders pages of comments. Shared by DataServlet and the
+ * server-rendered index page.
+ */
+public final class CommentPages {
+
+  /** how long a page waits for Translate before serving the rest untranslated */
+  private static final long TRANSLATE_BUDGET_MILLIS = 1000;
+  private static final int TRANSLATE_CHUNK_SIZE = 25;
+  private static final int TRANSLATE_THREADS = 4;
+
+  /**
+   * opened by 5 failed or late Translate calls of page requests in a row; tries again after
+   * 30 seconds. TranslationPipeline has its own, so its tasks don't open this one.
+   */
+  private static final CircuitBreaker TRANSLATE_BREAKER =
+      new CircuitBreaker("Translate", 5, 30 * 1000);
+
+  private CommentPages() {}
+
+  /** A page of comments rendered as JSON. */
+  public static final class RenderedPage {
+    private final String json;
+    private final boolean complete;
+
+    RenderedPage(String json, boolean complete) {
+      this.json = json;
+      this.complete = complete;
+    }
+
+    public String getJson() {
+      return json;
+    }
+
+    /** Returns false if some comments were left untranslated, so the page shouldn't be kept. */
+    public boolean isComplete() {
+      return complete;
+    }
+  }
+
+  /** The content to show for each comment of a page, and which of them are untranslated. */
+  public static final class TranslatedContents {
+    private final List<String> contents;
+    private final BitSet untranslated;
+
+    TranslatedContents(List<String> contents, BitSet untranslated) {
+      this.contents = contents;
+      this.untranslated = untranslated;
+    }
+
+    public String get(int i) {
+      return contents.get(i);
+    }
+
+    /**
+     * Returns false if comment i should have been translated but kept its original text,
+     * because Translate failed or ran out of time.
+     */
+    public boolean isTranslated(int i) {
+      return !untranslated.get(i);
+    }
+
+    /** Returns true if no comment was left untranslated. */
+    public boolean isComplete() {
+      return untranslated.isEmpty();
+    }
+
+    /** Returns the contents of comments from (inclusive) to to (exclusive). */
+    public TranslatedContents slice(int from, int to) {
+      return new TranslatedContents(
+          new ArrayList<>(contents.subList(from, to)), untranslated.get(from, to));
+    }
+  }
+
+  /**
+   * Returns the newest page of comments, from the FirstPageCache while no comment has
+   * changed since it was built. Pages with comments left untranslated aren't cached.
+   */
+  public static RenderedPage firstPage(int pageSize, String language) throws IOException {
+    FirstPageCache firstPageCache = FirstPageCache.getInstance();
+    String cachedJson = firstPageCache.get(pageSize, language);
+    if (cachedJson != null) {
+      return new RenderedPage(cachedJson, true);
+    }
+    long version = CommentsVersion.current();
+    CommentStore.Page page = Clients.comments().newest(pageSize, null, null);
+    List<Entity> entities = page.getComments();
+    TranslatedContents contents = translateContents(entities, language);
+
+    StringWriter json = new StringWriter();
+    writePage(json, entities, contents, page.getNextCursor(), lastOrder(entities));
+    if (contents.isComplete()) {
+      firstPageCache.put(pageSize, language, version, json.toString());
+    }
+    return new RenderedPage(json.toString(), contents.isComplete());
+  }
+
+  /** Returns the order of the last comment on a page, where the next keyset page starts. */
+  public static Long lastOrder(List<Entity> entities) {
+    if (entities.isEmpty()) {
+      return null;
+    }
+    return (Long) entities.get(entities.size() - 1).getProperty("order");
+  }
+
+  /**
+   * Writes a page of comments as {"comments": [...], "nextCursor": "...", "nextBefore": n}.
+   * Either nextCursor or nextBefore can be used to ask for the following page.
+   */
+  public static void writePage(Writer out, List<Entity> entities, TranslatedContents contents,
+      String nextCursor, Long nextBefore) throws IOException {
+    JsonWriter writer = new JsonWriter(out);
+    // the client checks for missing fields, e.g. comments without an image
+    writer.setSerializeNulls(false);
+    writer.beginObject();
+    writer.name("comments").beginArray();
+    for (int i = 0; i < entities.size(); i++) {
+      CommentJson.write(writer, entities.get(i), contents.get(i), contents.isTranslated(i));
+    }
+    writer.endArray();
+    writer.name("nextCursor").value(nextCursor);
+    writer.name("nextBefore").value(nextBefore);
+    writer.endObject();
+    writer.flush();
+  }
+
+  /**
+   * Returns the content of each entity, translated to the target language.
+   * Translations are served from the TranslationCache when possible; the remaining
+   * non-empty contents are translated with batched requests in parallel and then cached.
+   * If no language was requested the original contents are returned without calling Translate,
+   * and so are those of comments already written in the requested language.
+   *
+   * <p>Translate gets TRANSLATE_BUDGET_MILLIS per call of this method. Comments it hasn't
+   * translated by then, or failed to, keep their original text and are marked untranslated.
+   * A late request counts as failed and is cancelled, so it doesn't hold a thread that the
+   * next page needs.
+   */
+  public static TranslatedContents translateContents(List<Entity> entities, String language) {
+    long deadline = System.currentTimeMillis() + TRANSLATE_BUDGET_MILLIS;
+    boolean translating = language != null && !language.isEmpty();
+    List<String> contents = new ArrayList<>();
+    BitSet untranslated = new BitSet();
+    List<Key> keys = new ArrayList<>();
+    for (int i = 0; i < entities.size(); i++) {
+      Entity entity = entities.get(i);
+      String content = (String) entity.getProperty("content");
+      contents.add(content == null ? "" : content);
+      if (translating && content != null && !content.isEmpty()
+          && !isInLanguage((String) entity.getProperty("language"), language)) {
+        untranslated.set(i);
+        keys.add(entity.getKey());
+      }
+    }
+    if (keys.isEmpty()) {
+      return new TranslatedContents(contents, untranslated);
+    }
+
+    TranslationCache cache = TranslationCache.getInstance();
+    DatastoreService datastore = Clients.cacheDatastore();
+    Map<Key, String> cached = cache.getAll(datastore, keys, language);
+
+    // only send the comments that weren't cached, remembering where each one came from
+    List<String> texts = new ArrayList<>();
+    List<Integer> positions = new ArrayList<>();
+    for (int i = untranslated.nextSetBit(0); i >= 0; i = untranslated.nextSetBit(i + 1)) {
+      Key key = entities.get(i).getKey();
+      if (cached.containsKey(key)) {
+        contents.set(i, cached.get(key));
+        untranslated.clear(i);
+      } else {
+        texts.add(contents.get(i));
+        positions.add(i);
+      }
+    }
+    if (texts.isEmpty()) {
+      return new TranslatedContents(contents, untranslated);
+    }
+
+    // large pages are split so that one slow or failing request only holds back its chunk;
+    // the threads belong to this request, so chunks still running at the deadline are dropped
+    int chunkCount = (texts.size() + TRANSLATE_CHUNK_SIZE - 1) / TRANSLATE_CHUNK_SIZE;
+    ExecutorService pool = RequestThreads.newPool(Math.min(TRANSLATE_THREADS, chunkCount));
+    try {
+      List<Future<List<String>>> chunks = new ArrayList<>();
+      List<CircuitBreaker.Call> calls = new ArrayList<>();
+      for (int from = 0; from < texts.size(); from += TRANSLATE_CHUNK_SIZE) {
+        int to = Math.min(from + TRANSLATE_CHUNK_SIZE, texts.size());
+        List<String> chunkTexts = new ArrayList<>(texts.subList(from, to));
+        List<Key> chunkKeys = new ArrayList<>();
+        for (int position : positions.subList(from, to)) {
+          chunkKeys.add(entities.get(position).getKey());
+        }
+        CircuitBreaker.Call call = TRANSLATE_BREAKER.newCall();
+        calls.add(call);
+        chunks.add(pool.submit(() -> {
+          if (call.isSettled()) {
+            // given up on before it got a thread
+            return null;
+          }
+          List<String> translations = new ArrayList<>();
+          for (Translation translation : translations(chunkTexts, language, call)) {
+            translations.add(translation.getTranslatedText());
+          }
+          Map<Key, String> fresh = new HashMap<>();
+          for (int i = 0; i < translations.size(); i++) {
+            fresh.put(chunkKeys.get(i), translations.get(i));
+          }
+          cache.putAll(datastore, fresh, language);
+          return translations;
+        }));
+      }
+      for (int chunk = 0; chunk < chunks.size(); chunk++) {
+        List<String> translations;
+        try {
+          translations = chunks.get(chunk)
+              .get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          chunks.get(chunk).cancel(true);
+          calls.get(chunk).failed();
+          continue;
+        } catch (ExecutionException e) {
+          // logged by translations(), or the breaker is open
+          continue;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        for (int i = 0; i < translations.size(); i++) {
+          int position = positions.get(chunk * TRANSLATE_CHUNK_SIZE + i);
+          contents.set(position, translations.get(i));
+          untranslated.clear(position);
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    return new TranslatedContents(contents, untranslated);
+  }
+
+  /**
+   * Translates texts into language with one batched call to Translate. Throws
+   * IllegalStateException without calling it while breaker is open.
+   */
+  static List<String> translate(List<String> texts, String language, CircuitBreaker breaker) {
+    List<String> translatedTexts = new ArrayList<>();
+    for (Translation translation : translations(texts, language, breaker)) {
+      translatedTexts.add(translation.getTranslatedText());
+    }
+    return translatedTexts;
+  }
+
+  /** Like translate(), but also returns the source language Translate detected for each text. */
+  static List<Translation> translations(
+      List<String> texts, String language, CircuitBreaker breaker) {
+    return translations(texts, language, breaker.newCall());
+  }
+
+  /**
+   * Makes the Translate call and reports its outcome to the breaker of call, unless the
+   * caller stopped waiting and reported it as failed by then.
+   */
+  private static List<Translation> translations(
+      List<String> texts, String language, CircuitBreaker.Call call) {
+    if (!call.tryStart()) {
+      throw new IllegalStateException("Translate is failing, not calling it for now");
+    }
+    List<Translation> translations;
+    long start = System.nanoTime();
+    try {
+      translations = Clients.translate()
+          .translate(texts, Translate.TranslateOption.targetLanguage(language));
+    } catch (RuntimeException e) {
+      System.err.println("Could not translate comments to " + language + ": " + e);
+      // Translate answered, e.g. that a language asked for in the URL doesn't exist, so
+      // such a rejection says nothing about its health
+      if (isRejection(e)) {
+        call.succeeded();
+      } else {
+        call.failed();
+      }
+      throw e;
+    } finally {
+      Metrics.TRANSLATE.recordSince(start);
+    }
+    call.succeeded();
+    return translations;
+  }
+
+  /** Returns true if Translate refused the request itself, answering 400 Bad Request. */
+  private static boolean isRejection(RuntimeException e) {
+    return e instanceof TranslateException && ((TranslateException) e).getCode() == 400;
+  }
+
+  /**
+   * Returns true if a comment detected as sourceLanguage needs no translation to target.
+   * Translate detects Simplified Chinese as "zh-CN" but takes "zh" as a target.
+   */
+  static boolean isInLanguage(String sourceLanguage, String target) {
+    if (sourceLanguage == null) {
+      return false;
+    }
+    return sourceLanguage.equalsIgnoreCase(target)
+        || (sourceLanguage.equalsIgnoreCase("zh-CN") && target.equalsIgnoreCase("zh"));
+  }
+}
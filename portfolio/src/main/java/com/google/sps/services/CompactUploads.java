@@ -0,0 +1,79 @@
+package com.google.sps.services;
+
+import com.google.appengine.api.appidentity.AppIdentityServiceFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreInputStream;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+/**
+ * Replaces uploaded images with smaller copies made by ImageTranscoder.
+ * The copy is written to the app's default Cloud Storage bucket and served through a
+ * Blobstore key for that object, so ImagesService serves it like any other upload.
+ */
+public final class CompactUploads {
+
+  private static final String FOLDER = "comment-images/";
+
+  private CompactUploads() {}
+
+  /**
+   * Returns the key of a compact copy of the uploaded image, or the original key if the
+   * upload can't be made smaller. The original is kept; the caller deletes it once the copy
+   * is served in its place. Compacting is only an optimisation, so failures are logged and
+   * the original key is returned. If the calling thread is interrupted, e.g. because its
+   * caller gave up waiting, the copy is deleted again instead of being left unreferenced.
+   */
+  public static BlobKey compact(BlobKey upload) {
+    BlobId copy = null;
+    try {
+      ImageTranscoder.Result transcoded = ImageTranscoder.transcode(read(upload));
+      if (transcoded == null) {
+        return upload;
+      }
+      String bucket = AppIdentityServiceFactory.getAppIdentityService().getDefaultGcsBucketName();
+      copy = BlobId.of(bucket, FOLDER + UUID.randomUUID());
+      BlobInfo object = BlobInfo.newBuilder(copy)
+          .setContentType(transcoded.getContentType())
+          .build();
+      Clients.storage().create(object, transcoded.getData());
+      if (Thread.currentThread().isInterrupted()) {
+        deleteCopy(copy);
+        return upload;
+      }
+      return Clients.blobstore()
+          .createGsBlobKey("/gs/" + copy.getBucket() + "/" + copy.getName());
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Could not compact upload " + upload + ": " + e);
+      if (copy != null) {
+        // may or may not have been written
+        deleteCopy(copy);
+      }
+      return upload;
+    }
+  }
+
+  private static void deleteCopy(BlobId copy) {
+    try {
+      Clients.storage().delete(copy);
+    } catch (RuntimeException e) {
+      System.err.println("Could not delete compacted copy " + copy + ": " + e);
+    }
+  }
+
+  private static byte[] read(BlobKey blobKey) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = new BlobstoreInputStream(blobKey)) {
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    }
+    return out.toByteArray();
+  }
+}
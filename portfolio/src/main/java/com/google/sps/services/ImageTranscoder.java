@@ -0,0 +1,314 @@
+package com.google.sps.services;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Re-encodes uploaded photos into smaller files using the JDK's own ImageIO codecs, so it
+ * runs the same on a laptop as on App Engine. Images are scaled down to MAX_DIMENSION,
+ * opaque ones are written as JPEG and ones with transparency as PNG. Only the pixels are
+ * copied, so EXIF and other metadata (camera details, GPS position) are dropped; the EXIF
+ * orientation is applied to the pixels first, so phone photos stay upright. A copy is kept
+ * even when it isn't smaller if the original carries such metadata.
+ *
+ * <p>Large images are decoded with source subsampling, so only about every n-th pixel of
+ * each row and column is ever held in memory. Images over MAX_SOURCE_PIXELS aren't decoded
+ * at all, which also keeps a small file that claims huge dimensions from tying up the
+ * instance.
+ */
+public final class ImageTranscoder {
+
+  private static final int MAX_DIMENSION = 1600;
+  private static final long MAX_SOURCE_PIXELS = 100L * 1000 * 1000;
+  private static final float JPEG_QUALITY = 0.82f;
+
+  /** The re-encoded image and its content type. */
+  public static final class Result {
+    private final byte[] data;
+    private final String contentType;
+
+    private Result(byte[] data, String contentType) {
+      this.data = data;
+      this.contentType = contentType;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+  }
+
+  private ImageTranscoder() {}
+
+  /**
+   * Returns the image re-encoded, or null if it isn't an image ImageIO can read, or
+   * re-encoding wouldn't make it smaller and it has no metadata to strip.
+   */
+  public static Result transcode(byte[] original) throws IOException {
+    BufferedImage image = read(original);
+    if (image == null) {
+      return null;
+    }
+    boolean hasAlpha = image.getColorModel().hasAlpha();
+    BufferedImage pixels = orient(scaleDown(image, hasAlpha), exifOrientation(original));
+
+    Result result = hasAlpha ? new Result(writePng(pixels), "image/png")
+        : new Result(writeJpeg(pixels), "image/jpeg");
+    if (result.getData().length >= original.length && !hasMetadata(original)) {
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * Returns true if the image carries metadata that may identify the poster: APP1 (EXIF,
+   * XMP) or APP13 (IPTC) segments in a JPEG, text or eXIf chunks in a PNG.
+   */
+  static boolean hasMetadata(byte[] image) {
+    if (image.length >= 4 && (image[0] & 0xff) == 0xff && (image[1] & 0xff) == 0xd8) {
+      int position = 2;
+      while (position + 4 <= image.length && (image[position] & 0xff) == 0xff) {
+        int marker = image[position + 1] & 0xff;
+        if (marker == 0xe1 || marker == 0xed) {
+          return true;
+        }
+        int length = readShort(image, position + 2, true);
+        if (marker == 0xda || length < 2) {
+          return false;
+        }
+        position += 2 + length;
+      }
+      return false;
+    }
+    if (image.length >= 8 && new String(image, 1, 3, StandardCharsets.ISO_8859_1).equals("PNG")) {
+      long position = 8;
+      while (position + 8 <= image.length) {
+        long length = readInt(image, (int) position, true) & 0xffffffffL;
+        String type = new String(image, (int) position + 4, 4, StandardCharsets.ISO_8859_1);
+        if (type.equals("tEXt") || type.equals("iTXt") || type.equals("zTXt")
+            || type.equals("eXIf")) {
+          return true;
+        }
+        // text chunks may also follow the image data, so the walk goes on until IEND
+        if (type.equals("IEND")) {
+          return false;
+        }
+        // length, type, data and CRC
+        position += 12 + length;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Decodes the image, subsampled so that it is no more than about twice MAX_DIMENSION on
+   * its longer side. Returns null if ImageIO can't read it or it has over MAX_SOURCE_PIXELS.
+   */
+  static BufferedImage read(byte[] data) throws IOException {
+    try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(input, true, true);
+        // the header alone tells the size, before any pixels are decoded
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        if ((long) width * height > MAX_SOURCE_PIXELS) {
+          System.err.println("Not transcoding a " + width + "x" + height + " image");
+          return null;
+        }
+        // still leaves at least MAX_DIMENSION for the smooth scaling in scaleDown()
+        int step = Math.max(1, Math.max(width, height) / MAX_DIMENSION);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(step, step, 0, 0);
+        return reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Returns the image no larger than MAX_DIMENSION on either side, in a plain RGB or ARGB
+   * raster the encoders accept.
+   */
+  private static BufferedImage scaleDown(BufferedImage image, boolean hasAlpha) {
+    double scale = Math.min(1.0,
+        (double) MAX_DIMENSION / Math.max(image.getWidth(), image.getHeight()));
+    int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+    int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+    int type = hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+    BufferedImage scaled = new BufferedImage(width, height, type);
+    Graphics2D graphics = scaled.createGraphics();
+    try {
+      graphics.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      graphics.drawImage(image, 0, 0, width, height, null);
+    } finally {
+      graphics.dispose();
+    }
+    return scaled;
+  }
+
+  /**
+   * Returns the EXIF orientation of a JPEG, from 1 (upright) to 8, or 1 if it has none.
+   * Only the APP1 segment is parsed, since ImageIO doesn't read EXIF.
+   */
+  static int exifOrientation(byte[] jpeg) {
+    if (jpeg.length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != 0xd8) {
+      return 1;
+    }
+    int position = 2;
+    // walk the segments before the image data, which starts at SOS
+    while (position + 4 <= jpeg.length && (jpeg[position] & 0xff) == 0xff) {
+      int marker = jpeg[position + 1] & 0xff;
+      int length = readShort(jpeg, position + 2, true);
+      if (marker == 0xda || length < 2) {
+        return 1;
+      }
+      int start = position + 4;
+      if (marker == 0xe1 && start + 6 <= jpeg.length
+          && new String(jpeg, start, 6, StandardCharsets.ISO_8859_1)
+              .equals("Exif\0\0")) {
+        return tiffOrientation(jpeg, start + 6, Math.min(jpeg.length, position + 2 + length));
+      }
+      position += 2 + length;
+    }
+    return 1;
+  }
+
+  /** Returns the orientation tag of the first IFD of the TIFF structure at tiff..end. */
+  private static int tiffOrientation(byte[] data, int tiff, int end) {
+    if (tiff + 8 > end) {
+      return 1;
+    }
+    boolean bigEndian = data[tiff] == 'M';
+    long ifd = tiff + (readInt(data, tiff + 4, bigEndian) & 0xffffffffL);
+    if (ifd + 2 > end) {
+      return 1;
+    }
+    int entries = readShort(data, (int) ifd, bigEndian);
+    for (int i = 0; i < entries; i++) {
+      int entry = (int) ifd + 2 + i * 12;
+      if (entry + 12 > end) {
+        return 1;
+      }
+      if (readShort(data, entry, bigEndian) == 0x0112) {
+        int orientation = readShort(data, entry + 8, bigEndian);
+        return orientation >= 1 && orientation <= 8 ? orientation : 1;
+      }
+    }
+    return 1;
+  }
+
+  private static int readShort(byte[] data, int at, boolean bigEndian) {
+    int first = data[at] & 0xff;
+    int second = data[at + 1] & 0xff;
+    return bigEndian ? first << 8 | second : second << 8 | first;
+  }
+
+  private static int readInt(byte[] data, int at, boolean bigEndian) {
+    int high = readShort(data, bigEndian ? at : at + 2, bigEndian);
+    int low = readShort(data, bigEndian ? at + 2 : at, bigEndian);
+    return high << 16 | low;
+  }
+
+  /**
+   * Returns the image turned upright according to an EXIF orientation, which tells how the
+   * stored pixels are mirrored or turned: 2 to 4 keep the size, 5 to 8 swap width and height.
+   */
+  static BufferedImage orient(BufferedImage image, int orientation) {
+    if (orientation <= 1 || orientation > 8) {
+      return image;
+    }
+    int width = image.getWidth();
+    int height = image.getHeight();
+    boolean swapped = orientation >= 5;
+    BufferedImage oriented = new BufferedImage(
+        swapped ? height : width, swapped ? width : height, image.getType());
+    int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int pixel = pixels[y * width + x];
+        switch (orientation) {
+          case 2: // mirrored
+            oriented.setRGB(width - 1 - x, y, pixel);
+            break;
+          case 3: // upside down
+            oriented.setRGB(width - 1 - x, height - 1 - y, pixel);
+            break;
+          case 4: // mirrored upside down
+            oriented.setRGB(x, height - 1 - y, pixel);
+            break;
+          case 5: // mirrored, turned a quarter counter-clockwise
+            oriented.setRGB(y, x, pixel);
+            break;
+          case 6: // turned a quarter counter-clockwise
+            oriented.setRGB(height - 1 - y, x, pixel);
+            break;
+          case 7: // mirrored, turned a quarter clockwise
+            oriented.setRGB(height - 1 - y, width - 1 - x, pixel);
+            break;
+          default: // 8, turned a quarter clockwise
+            oriented.setRGB(y, width - 1 - x, pixel);
+            break;
+        }
+      }
+    }
+    return oriented;
+  }
+
+  private static byte[] writeJpeg(BufferedImage image) throws IOException {
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+    if (!writers.hasNext()) {
+      throw new IOException("No JPEG encoder available");
+    }
+    ImageWriter writer = writers.next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(JPEG_QUALITY);
+    if (param.canWriteProgressive()) {
+      param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+      writer.setOutput(stream);
+      // no metadata is passed, so none is written
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] writePng(BufferedImage image) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (!ImageIO.write(image, "png", out)) {
+      throw new IOException("No PNG encoder available");
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,118 @@
+package com.google.sps.services;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in HdrHistogram-style buckets: one per microsecond below 32 µs, then 16
+ * per power of two, so a bucket is never wider than 1/16 (6.25%) of the values in it, from a
+ * microsecond up to well over a day. Recording is a few atomic adds and allocates nothing,
+ * so it can be done on every request; reading the counts copies them.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+  /** larger values are counted as this; over 38 hours */
+  static final long MAX_MICROS = (1L << 37) - 1;
+  static final int BUCKETS = index(MAX_MICROS) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder sumNanos = new LongAdder();
+
+  /** Records how long something took. */
+  public void record(long nanos) {
+    long micros = Math.min(Math.max(nanos, 0) / 1000, MAX_MICROS);
+    counts.incrementAndGet(index(micros));
+    sumNanos.add(Math.max(nanos, 0));
+  }
+
+  /** Records the time since startNanos, a value of System.nanoTime(). */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /** Returns a copy of the counts recorded so far. */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+    }
+    return new Snapshot(copy, sumNanos.sum());
+  }
+
+  /** The counts of a histogram at one point in time. */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long sumNanos;
+    private final long count;
+
+    private Snapshot(long[] counts, long sumNanos) {
+      this.counts = counts;
+      this.sumNanos = sumNanos;
+      long total = 0;
+      for (long bucketCount : counts) {
+        total += bucketCount;
+      }
+      this.count = total;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public double getSumSeconds() {
+      return sumNanos / 1e9;
+    }
+
+    /**
+     * Returns how many recorded values are at most the given number of seconds. Only buckets
+     * that lie wholly below the bound count, so values just under it may be left out.
+     */
+    public long countAtMost(double seconds) {
+      long atMost = 0;
+      for (int i = 0; i < counts.length && upperBoundMicros(i) <= seconds * 1e6; i++) {
+        atMost += counts[i];
+      }
+      return atMost;
+    }
+
+    /**
+     * Returns the value, in seconds, that a quantile (0 to 1) of the recorded values is at
+     * or below, rounded up to its bucket's bound. Returns 0 if nothing was recorded.
+     */
+    public double quantileSeconds(double quantile) {
+      long rank = (long) Math.ceil(quantile * count);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank && seen > 0) {
+          return upperBoundMicros(i) / 1e6;
+        }
+      }
+      return 0;
+    }
+  }
+
+  /** Returns the bucket counting a value, in microseconds, of 0 to MAX_MICROS. */
+  static int index(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    // keep the top SUB_BUCKET_BITS - 1 bits below the highest one
+    int shift = 63 - Long.numberOfLeadingZeros(micros) - (SUB_BUCKET_BITS - 1);
+    return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS
+        + (int) ((micros >> shift) - HALF_SUB_BUCKETS);
+  }
+
+  /** Returns the largest value, in microseconds, counted in bucket i. */
+  static long upperBoundMicros(int i) {
+    if (i < SUB_BUCKETS) {
+      return i;
+    }
+    int shift = (i - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+    long subBucket = (i - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,122 @@
+package com.google.sps.services;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Latency histograms of this instance: one per servlet route, recorded by MetricsFilter,
+ * and one per kind of outbound call. Outbound calls are timed where they are made with
+ *
+ * <pre>
+ *   long start = System.nanoTime();
+ *   try {
+ *     ...call...
+ *   } finally {
+ *     Metrics.TRANSLATE.recordSince(start);
+ *   }
+ * </pre>
+ *
+ * which allocates nothing. writePrometheus() renders everything for /metrics.
+ */
+public final class Metrics {
+
+  /** routes beyond this many share the "other" histogram, e.g. static files on the dev server */
+  private static final int MAX_ROUTES = 50;
+  private static final String OTHER_ROUTE = "other";
+
+  /** histogram bounds exported to Prometheus, in seconds */
+  private static final double[] BUCKET_BOUNDS =
+      {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private static final ConcurrentMap<String, LatencyHistogram> routes =
+      new ConcurrentHashMap<>();
+  private static final Map<String, LatencyHistogram> outboundCalls =
+      new ConcurrentHashMap<>();
+
+  public static final LatencyHistogram DATASTORE_QUERY = outbound("datastore_query");
+  public static final LatencyHistogram DATASTORE_GET = outbound("datastore_get");
+  public static final LatencyHistogram DATASTORE_PUT = outbound("datastore_put");
+  public static final LatencyHistogram DATASTORE_DELETE = outbound("datastore_delete");
+  public static final LatencyHistogram TRANSLATE = outbound("translate");
+  public static final LatencyHistogram DETECT_LANGUAGE = outbound("detect_language");
+  public static final LatencyHistogram ANALYZE_SENTIMENT = outbound("analyze_sentiment");
+  public static final LatencyHistogram BLOB_INFO = outbound("blob_info");
+  public static final LatencyHistogram UPLOAD_COMPACTION = outbound("upload_compaction");
+  public static final LatencyHistogram SERVING_URL = outbound("serving_url");
+  public static final LatencyHistogram UPLOAD_URL = outbound("upload_url");
+
+  private Metrics() {}
+
+  private static LatencyHistogram outbound(String call) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    outboundCalls.put(call, histogram);
+    return histogram;
+  }
+
+  /** Returns the histogram of requests to a servlet route, e.g. "/data". */
+  public static LatencyHistogram route(String route) {
+    LatencyHistogram histogram = routes.get(route);
+    if (histogram != null) {
+      return histogram;
+    }
+    if (routes.size() >= MAX_ROUTES) {
+      route = OTHER_ROUTE;
+    }
+    return routes.computeIfAbsent(route, name -> new LatencyHistogram());
+  }
+
+  /** Writes every histogram in the Prometheus text exposition format. */
+  public static void writePrometheus(Writer out) throws IOException {
+    writeFamily(out, "portfolio_request_duration_seconds",
+        "Time to handle a request, by servlet route.", "route", routes);
+    writeFamily(out, "portfolio_outbound_call_duration_seconds",
+        "Time spent in calls to other services, by call.", "call", outboundCalls);
+  }
+
+  /**
+   * Writes one histogram family and, since the buckets are much finer than the exported
+   * ones, a gauge family with quantiles computed from them.
+   */
+  private static void writeFamily(Writer out, String name, String help, String label,
+      Map<String, LatencyHistogram> histograms) throws IOException {
+    Map<String, LatencyHistogram.Snapshot> snapshots = new TreeMap<>();
+    for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+      snapshots.put(histogram.getKey(), histogram.getValue().snapshot());
+    }
+
+    out.write("# HELP " + name + " " + help + "\n");
+    out.write("# TYPE " + name + " histogram\n");
+    for (Map.Entry<String, LatencyHistogram.Snapshot> entry : snapshots.entrySet()) {
+      String labels = label + "=\"" + escape(entry.getKey()) + "\"";
+      LatencyHistogram.Snapshot snapshot = entry.getValue();
+      for (double bound : BUCKET_BOUNDS) {
+        out.write(name + "_bucket{" + labels + ",le=\"" + bound + "\"} "
+            + snapshot.countAtMost(bound) + "\n");
+      }
+      out.write(name + "_bucket{" + labels + ",le=\"+Inf\"} " + snapshot.getCount() + "\n");
+      out.write(name + "_sum{" + labels + "} " + snapshot.getSumSeconds() + "\n");
+      out.write(name + "_count{" + labels + "} " + snapshot.getCount() + "\n");
+    }
+
+    String quantileName = name.replace("_seconds", "_quantile_seconds");
+    out.write("# HELP " + quantileName + " Quantiles of " + name
+        + " since the instance started.\n");
+    out.write("# TYPE " + quantileName + " gauge\n");
+    for (Map.Entry<String, LatencyHistogram.Snapshot> entry : snapshots.entrySet()) {
+      String labels = label + "=\"" + escape(entry.getKey()) + "\"";
+      for (double quantile : QUANTILES) {
+        out.write(quantileName + "{" + labels + ",quantile=\"" + quantile + "\"} "
+            + entry.getValue().quantileSeconds(quantile) + "\n");
+      }
+    }
+  }
+
+  private static String escape(String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,216 @@
+package com.google.sps.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.sps.data.CommentKeys;
+import com.google.sps.data.CommentOrder;
+import com.google.sps.data.CommentsVersion;
+import com.google.sps.data.ImageVariant;
+import com.google.sps.data.TranslationCache;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One-off data migrations, run by a push queue task that each new version of the app adds
+ * when its first instance loads. A finished migration is recorded as a "Migration" entity so
+ * later runs skip it, and a failed one fails the task so the queue retries it. Migrations must
+ * be safe to run twice, since a retry may follow a run that was cut off part way through.
+ * They only concern data in Datastore, so nothing runs when comments are kept locally.
+ */
+public final class Migrations {
+
+  private static final String KIND = "Migration";
+  private static final int BATCH_SIZE = 100;
+  private static final String TASK_URL = "/tasks/migrate";
+
+  private Migrations() {}
+
+  /**
+   * Adds the migration task, once per app version: the task is named after the version and
+   * the queue refuses a second task of the same name.
+   */
+  public static void schedule() {
+    if (!Clients.usesDatastore()) {
+      return;
+    }
+    String version = String.valueOf(SystemProperty.applicationVersion.get());
+    String name = "migrate-" + version.replaceAll("[^A-Za-z0-9_-]", "-");
+    try {
+      QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(TASK_URL).taskName(name));
+    } catch (TaskAlreadyExistsException e) {
+      // another instance of this version added it
+    } catch (RuntimeException e) {
+      // the next instance to load tries again
+      System.err.println("Could not schedule migrations: " + e);
+    }
+  }
+
+  /** Runs the migrations not finished yet, in order. Returns false if one of them failed. */
+  public static boolean run() {
+    if (!Clients.usesDatastore()) {
+      return true;
+    }
+    return runOnce("comment-order", Migrations::backfillCommentOrder)
+        // replaces "comment-poster-root", which rooted comments at the poster's raw email
+        && runOnce("comment-poster-hash", Migrations::moveCommentsUnderPoster)
+        && runOnce("comment-image-variants", Migrations::backfillImageVariants)
+        && runOnce("comment-language", Migrations::backfillLanguage)
+        && runOnce("translations-per-comment", Migrations::deleteLanguageTranslations);
+  }
+
+  private static boolean runOnce(String name, Runnable migration) {
+    DatastoreService datastore = Clients.datastore();
+    Key key = KeyFactory.createKey(KIND, name);
+    try {
+      datastore.get(key);
+      return true;
+    } catch (EntityNotFoundException e) {
+      // not run yet
+    }
+    try {
+      migration.run();
+      Entity done = new Entity(key);
+      done.setProperty("finished", System.currentTimeMillis());
+      datastore.put(done);
+      return true;
+    } catch (RuntimeException e) {
+      System.err.println("Migration " + name + " failed: " + e);
+      return false;
+    }
+  }
+
+  /** Gives every comment stored before CommentOrder existed an "order" property. */
+  private static void backfillCommentOrder() {
+    DatastoreService datastore = Clients.datastore();
+    List<Entity> batch = new ArrayList<>();
+    for (Entity entity : datastore.prepare(new Query("Comment")).asIterable()) {
+      if (entity.hasProperty("order")) {
+        continue;
+      }
+      long timestamp = ((Number) entity.getProperty("timestamp")).longValue();
+      long id = entity.getKey().getId();
+      entity.setProperty("order", CommentOrder.forLegacyComment(timestamp, id));
+      batch.add(entity);
+      if (batch.size() == BATCH_SIZE) {
+        datastore.put(batch);
+        batch.clear();
+      }
+    }
+    datastore.put(batch);
+    CommentsVersion.bump();
+  }
+
+  /**
+   * Moves comments stored at the root, or under a poster named by their raw email, into
+   * the hashed legacy entity group of their poster (see CommentKeys). Keys can't change, so
+   * each comment is copied to a new key and the old one deleted, together with its cached
+   * translations. The copy keeps the comment's id, so running this again, e.g. on a retry
+   * of the task, overwrites the copy instead of duplicating the comment.
+   */
+  private static void moveCommentsUnderPoster() {
+    DatastoreService datastore = Clients.datastore();
+    List<Entity> copies = new ArrayList<>();
+    List<Key> originals = new ArrayList<>();
+    for (Entity entity : datastore.prepare(new Query("Comment")).asIterable()) {
+      if (CommentKeys.isHashedPosterKey(entity.getParent())) {
+        continue;
+      }
+      String email = (String) entity.getProperty("email");
+      Entity copy = new Entity(
+          CommentKeys.commentKey(CommentKeys.legacyPosterKey(email), entity.getKey().getId()));
+      copy.setPropertiesFrom(entity);
+      copies.add(copy);
+      originals.add(entity.getKey());
+      if (copies.size() == BATCH_SIZE) {
+        moveBatch(datastore, copies, originals);
+      }
+    }
+    moveBatch(datastore, copies, originals);
+    CommentsVersion.bump();
+  }
+
+  /**
+   * Gives comments posted before ImageVariant existed a URL for every variant. Their blob
+   * keys weren't kept, so the smaller variants fall back to the full-size URL; the listing
+   * is a projection query and leaves out comments missing any of the properties.
+   */
+  private static void backfillImageVariants() {
+    DatastoreService datastore = Clients.datastore();
+    List<Entity> batch = new ArrayList<>();
+    for (Entity entity : datastore.prepare(new Query("Comment")).asIterable()) {
+      boolean changed = false;
+      for (ImageVariant variant : ImageVariant.values()) {
+        if (!entity.hasProperty(variant.getProperty())) {
+          entity.setProperty(variant.getProperty(), entity.getProperty("image"));
+          changed = true;
+        }
+      }
+      if (changed) {
+        batch.add(entity);
+      }
+      if (batch.size() == BATCH_SIZE) {
+        datastore.put(batch);
+        batch.clear();
+      }
+    }
+    datastore.put(batch);
+    CommentsVersion.bump();
+  }
+
+  /**
+   * Gives comments posted before languages were detected a null "language", which
+   * translateContents() treats as unknown, so the projection query still returns them.
+   */
+  private static void backfillLanguage() {
+    DatastoreService datastore = Clients.datastore();
+    List<Entity> batch = new ArrayList<>();
+    for (Entity entity : datastore.prepare(new Query("Comment")).asIterable()) {
+      if (entity.hasProperty("language")) {
+        continue;
+      }
+      entity.setProperty("language", null);
+      batch.add(entity);
+      if (batch.size() == BATCH_SIZE) {
+        datastore.put(batch);
+        batch.clear();
+      }
+    }
+    datastore.put(batch);
+    CommentsVersion.bump();
+  }
+
+  /**
+   * Deletes the "Translation" entities that kept one language each, from before all
+   * translations of a comment were kept in one entity (see TranslationCache). They are only
+   * a cache, so their texts are simply translated again when needed.
+   */
+  private static void deleteLanguageTranslations() {
+    DatastoreService datastore = Clients.datastore();
+    List<Key> batch = new ArrayList<>();
+    for (Entity entity : datastore.prepare(new Query("Translation").setKeysOnly()).asIterable()) {
+      batch.add(entity.getKey());
+      if (batch.size() == BATCH_SIZE) {
+        datastore.delete(batch);
+        batch.clear();
+      }
+    }
+    datastore.delete(batch);
+  }
+
+  private static void moveBatch(
+      DatastoreService datastore, List<Entity> copies, List<Key> originals) {
+    datastore.put(copies);
+    datastore.delete(originals);
+    TranslationCache.getInstance().invalidate(datastore, originals);
+    copies.clear();
+    originals.clear();
+  }
+}
@@ -0,0 +1,38 @@
+package com.google.sps.services;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.utils.SystemProperty;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates thread pools for work a request does in parallel. The app runs on automatic
+ * scaling, where App Engine only lets threads call its APIs while the request that started
+ * them is running, so work that outlives a request goes to the task queue instead (see
+ * SentimentPipeline, TranslationPipeline and Migrations).
+ */
+public final class RequestThreads {
+
+  private RequestThreads() {}
+
+  /**
+   * Returns a pool of threads bound to the current request. The caller must shut it down
+   * before the request ends. Outside of App Engine (unit tests, local tools) plain JVM
+   * daemon threads are used instead.
+   */
+  public static ExecutorService newPool(int size) {
+    return Executors.newFixedThreadPool(size, threadFactory());
+  }
+
+  private static ThreadFactory threadFactory() {
+    if (SystemProperty.environment.value() == null) {
+      return runnable -> {
+        Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+        thread.setDaemon(true);
+        return thread;
+      };
+    }
+    return ThreadManager.currentRequestThreadFactory();
+  }
+}
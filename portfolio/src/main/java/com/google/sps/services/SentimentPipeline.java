@@ -0,0 +1,154 @@
+package com.google.sps.services;
+
+import com.google.api.gax.rpc.InvalidArgumentException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.language.v1.Document;
+import com.google.cloud.language.v1.LanguageServiceClient;
+import com.google.sps.data.CommentStore;
+import com.google.sps.data.CommentsVersion;
+import com.google.sps.data.SentimentCache;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Scores the sentiment of new comments in the background so posting doesn't wait on the
+ * Natural Language API. DataServlet stores a comment with sentimentPending = true and queues
+ * task(key) on the default push queue; SentimentTaskServlet hands the keys of each task to
+ * score(), which scores each comment with the shared LanguageServiceClient from Clients and
+ * writes the scores back through CommentStore.update(). Scores are kept in the SentimentCache
+ * by text, so repeated texts are scored only once.
+ *
+ * <p>A task whose scoring failed for a reason that may pass fails too, and the queue retries
+ * it with backoff; the comments it did score are no longer pending and are skipped then.
+ * Texts the API rejects get NO_SCORE and are not retried. The sweep, run by cron, queues
+ * tasks for pending comments whose task was never added.
+ */
+public final class SentimentPipeline {
+
+  /**
+   * score stored while a comment has no sentiment, or for good if it can't be scored;
+   * hidden by the client
+   */
+  public static final float NO_SCORE = -2;
+  public static final String PENDING_PROPERTY = "sentimentPending";
+
+  private static final String TASK_URL = "/tasks/sentiment";
+  private static final int BATCH_SIZE = 10;
+  private static final int SWEEP_LIMIT = 100;
+
+  private SentimentPipeline() {}
+
+  /** Returns the task that scores a stored comment. */
+  public static TaskOptions task(Key commentKey) {
+    return TaskOptions.Builder.withUrl(TASK_URL)
+        .param("key", KeyFactory.keyToString(commentKey));
+  }
+
+  /**
+   * Scores a batch of comments that are still pending. Texts already in the SentimentCache,
+   * or repeated within the batch, are not sent to the Natural Language API again. Returns
+   * false if some comments couldn't be scored for now, so the task should be retried.
+   */
+  public static boolean score(List<Key> batch) {
+    CommentStore store = Clients.comments();
+    // comments deleted in the meantime are simply missing from the result
+    Collection<Entity> entities = store.get(batch).values();
+    Map<Key, String> hashes = new HashMap<>();
+    for (Entity entity : entities) {
+      // comments scored by an earlier try of the same task are skipped
+      if (Boolean.TRUE.equals(entity.getProperty(PENDING_PROPERTY))) {
+        String content = (String) entity.getProperty("content");
+        hashes.put(entity.getKey(), SentimentCache.contentHash(content));
+      }
+    }
+    SentimentCache cache = SentimentCache.getInstance();
+    DatastoreService datastore = Clients.cacheDatastore();
+    Map<String, Float> scores =
+        new HashMap<>(cache.getAll(datastore, new HashSet<>(hashes.values())));
+
+    Map<String, Float> fresh = new HashMap<>();
+    Set<String> failed = new HashSet<>();
+    List<Key> scoredKeys = new ArrayList<>();
+    for (Entity entity : entities) {
+      String hash = hashes.get(entity.getKey());
+      if (hash == null) {
+        continue;
+      }
+      if (!scores.containsKey(hash) && !failed.contains(hash)) {
+        float score;
+        try {
+          score = analyze((String) entity.getProperty("content"));
+        } catch (InvalidArgumentException e) {
+          // e.g. a language the API doesn't support, which won't work on a retry either
+          System.err.println("Can't score sentiment of " + entity.getKey() + ": " + e);
+          score = NO_SCORE;
+        } catch (RuntimeException e) {
+          // stays pending for the retry, without holding back the rest of the batch
+          System.err.println("Could not score sentiment of " + entity.getKey() + ": " + e);
+          failed.add(hash);
+          continue;
+        }
+        scores.put(hash, score);
+        fresh.put(hash, score);
+      }
+      if (scores.containsKey(hash)) {
+        scoredKeys.add(entity.getKey());
+      }
+    }
+    cache.putAll(datastore, fresh);
+
+    // Scoring can take seconds, so only the score is written back, onto a fresh read of
+    // each comment; comments deleted in the meantime stay deleted.
+    List<Entity> scored = store.update(scoredKeys, entity -> {
+      entity.setProperty("sentiment", scores.get(hashes.get(entity.getKey())));
+      entity.removeProperty(PENDING_PROPERTY);
+    });
+    if (!scored.isEmpty()) {
+      // clients patch the scores into the comments they show instead of refetching them
+      long version = CommentsVersion.bump();
+      CommentEvents.getInstance().publishSentiments(version, scored);
+    }
+    return failed.isEmpty();
+  }
+
+  private static float analyze(String content) {
+    Document doc =
+        Document.newBuilder().setContent(content).setType(Document.Type.PLAIN_TEXT).build();
+    LanguageServiceClient client = Clients.language();
+    long start = System.nanoTime();
+    try {
+      return client.analyzeSentiment(doc).getDocumentSentiment().getScore();
+    } finally {
+      Metrics.ANALYZE_SENTIMENT.recordSince(start);
+    }
+  }
+
+  /** Queues tasks for comments still pending, BATCH_SIZE comments to a task. */
+  public static void sweep() {
+    List<TaskOptions> tasks = new ArrayList<>();
+    TaskOptions task = null;
+    int inTask = 0;
+    for (Key key : Clients.comments().pendingSentiment(SWEEP_LIMIT)) {
+      if (task == null || inTask == BATCH_SIZE) {
+        task = TaskOptions.Builder.withUrl(TASK_URL);
+        tasks.add(task);
+        inTask = 0;
+      }
+      task.param("key", KeyFactory.keyToString(key));
+      inTask++;
+    }
+    if (!tasks.isEmpty()) {
+      QueueFactory.getDefaultQueue().add(tasks);
+    }
+  }
+}
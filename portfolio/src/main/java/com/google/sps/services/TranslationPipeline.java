@@ -0,0 +1,194 @@
+package com.google.sps.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.translate.Detection;
+import com.google.cloud.translate.Translation;
+import com.google.sps.data.TranslationCache;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Detects the language of new comments and translates them into the "hot" languages most
+ * readers use, so reading them in their own language or one of those never waits on
+ * Translate, and posting never waits on either. DataServlet queues task(key) on the default
+ * push queue for each stored comment; TranslationTaskServlet hands the keys to process(),
+ * which stores the language of each comment on it and translates them with one request per
+ * hot language they aren't written in. The results are stored through the TranslationCache,
+ * where CommentPages.translateContents() finds them. The listing is a projection query, which
+ * can't return long unindexed text, so the translations are kept as the comment's child
+ * entities rather than on the comment itself.
+ *
+ * <p>A failed task is retried by the queue; detection skips comments that already have a
+ * language and translation skips cached translations, so a retry only redoes what failed.
+ * A comment whose task gives up is just translated on demand, like comments in any other
+ * language.
+ *
+ * <p>The hot languages are the comma-separated codes of the comments.hotLanguages system
+ * property, set in appengine-web.xml.
+ */
+public final class TranslationPipeline {
+
+  private static final String TASK_URL = "/tasks/translate";
+
+  private static final List<String> HOT_LANGUAGES =
+      parseLanguages(System.getProperty("comments.hotLanguages", ""));
+
+  /**
+   * opened by 5 failed Translate calls of tasks in a row; tries again after 30 seconds, and
+   * until then tasks fail and are retried later. Separate from the breaker of page requests,
+   * so a backlog of tasks can't keep pages from being translated, nor the other way round.
+   */
+  private static final CircuitBreaker TRANSLATE_BREAKER =
+      new CircuitBreaker("Translate tasks", 5, 30 * 1000);
+
+  private TranslationPipeline() {}
+
+  /** Returns the task that detects the language of a stored comment and translates it. */
+  public static TaskOptions task(Key commentKey) {
+    return TaskOptions.Builder.withUrl(TASK_URL)
+        .param("key", KeyFactory.keyToString(commentKey));
+  }
+
+  /**
+   * Detects the language of the comments and translates them into the hot languages.
+   * Throws if Translate failed, so the task is retried.
+   */
+  public static void process(List<Key> commentKeys) {
+    // comments deleted in the meantime are simply missing from the result
+    Collection<Entity> comments = Clients.comments().get(commentKeys).values();
+    detectLanguages(comments);
+    translate(comments);
+  }
+
+  /**
+   * Detects the language of the comments that don't have one yet and stores it on them.
+   * The translation into the first hot language reports the language it translated from,
+   * so that translation is made and cached here; with no hot languages Translate is only
+   * asked to detect. Languages Translate can't tell are left unknown.
+   */
+  private static void detectLanguages(Collection<Entity> comments) {
+    List<Entity> unknown = new ArrayList<>();
+    List<String> texts = new ArrayList<>();
+    for (Entity comment : comments) {
+      String content = (String) comment.getProperty("content");
+      if (content != null && !content.isEmpty() && comment.getProperty("language") == null) {
+        unknown.add(comment);
+        texts.add(content);
+      }
+    }
+    if (unknown.isEmpty()) {
+      return;
+    }
+
+    Map<Key, String> languages = new HashMap<>();
+    if (HOT_LANGUAGES.isEmpty()) {
+      CircuitBreaker.Call call = TRANSLATE_BREAKER.newCall();
+      if (!call.tryStart()) {
+        throw new IllegalStateException("Translate is failing, not calling it for now");
+      }
+      List<Detection> detections;
+      long start = System.nanoTime();
+      try {
+        detections = Clients.translate().detect(texts);
+        call.succeeded();
+      } catch (RuntimeException e) {
+        call.failed();
+        throw e;
+      } finally {
+        Metrics.DETECT_LANGUAGE.recordSince(start);
+      }
+      for (int i = 0; i < detections.size(); i++) {
+        languages.put(unknown.get(i).getKey(), knownLanguage(detections.get(i).getLanguage()));
+      }
+    } else {
+      String target = HOT_LANGUAGES.get(0);
+      List<Translation> translations = CommentPages.translations(texts, target, TRANSLATE_BREAKER);
+      Map<Key, String> fresh = new HashMap<>();
+      for (int i = 0; i < translations.size(); i++) {
+        Key key = unknown.get(i).getKey();
+        String language = knownLanguage(translations.get(i).getSourceLanguage());
+        languages.put(key, language);
+        if (!CommentPages.isInLanguage(language, target)) {
+          fresh.put(key, translations.get(i).getTranslatedText());
+        }
+      }
+      TranslationCache.getInstance().putAll(Clients.cacheDatastore(), fresh, target);
+    }
+
+    languages.values().removeIf(Objects::isNull);
+    Clients.comments().update(languages.keySet(),
+        comment -> comment.setProperty("language", languages.get(comment.getKey())));
+    // so translate() skips the languages the comments turned out to be written in
+    for (Entity comment : unknown) {
+      comment.setProperty("language", languages.get(comment.getKey()));
+    }
+  }
+
+  /** Returns the language code, or null for Translate's "und" (undetermined). */
+  private static String knownLanguage(String language) {
+    return language == null || language.equals("und") ? null : language;
+  }
+
+  /**
+   * Translates the comments into each hot language they aren't written in and don't
+   * already have a cached translation for.
+   */
+  private static void translate(Collection<Entity> comments) {
+    TranslationCache cache = TranslationCache.getInstance();
+    DatastoreService datastore = Clients.cacheDatastore();
+    for (String language : HOT_LANGUAGES) {
+      Map<Key, String> contents = new LinkedHashMap<>();
+      for (Entity comment : comments) {
+        String content = (String) comment.getProperty("content");
+        if (content != null && !content.isEmpty()
+            && !CommentPages.isInLanguage((String) comment.getProperty("language"), language)) {
+          contents.put(comment.getKey(), content);
+        }
+      }
+      if (contents.isEmpty()) {
+        continue;
+      }
+      Map<Key, String> cached = cache.getAll(datastore, contents.keySet(), language);
+
+      List<Key> untranslated = new ArrayList<>();
+      List<String> texts = new ArrayList<>();
+      for (Map.Entry<Key, String> content : contents.entrySet()) {
+        if (!cached.containsKey(content.getKey())) {
+          untranslated.add(content.getKey());
+          texts.add(content.getValue());
+        }
+      }
+      if (texts.isEmpty()) {
+        continue;
+      }
+      List<String> translations = CommentPages.translate(texts, language, TRANSLATE_BREAKER);
+      Map<Key, String> fresh = new HashMap<>();
+      for (int i = 0; i < translations.size(); i++) {
+        fresh.put(untranslated.get(i), translations.get(i));
+      }
+      cache.putAll(datastore, fresh, language);
+    }
+  }
+
+  /** Returns the language codes in a comma-separated list, e.g. "es, zh". */
+  private static List<String> parseLanguages(String list) {
+    List<String> languages = new ArrayList<>();
+    for (String language : list.split(",")) {
+      language = language.trim();
+      if (!language.isEmpty()) {
+        languages.add(language);
+      }
+    }
+    return Collections.unmodifiableList(languages);
+  }
+}
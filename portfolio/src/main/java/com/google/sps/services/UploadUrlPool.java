@@ -0,0 +1,110 @@
+package com.google.sps.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Blobstore upload URLs minted ahead of time, so /blob-url doesn't make a remote call on
+ * every page view. Each URL is handed out once. Upload URLs expire after 10 minutes; a URL
+ * is only handed out while it has at least MIN_LIFETIME_MILLIS left for the user to
+ * fill in the form, and older ones are thrown away.
+ *
+ * <p>There is no background refill: on automatic scaling App Engine API calls must be made
+ * from a request. WarmupServlet fills the pool, and a request that finds it empty mints a new
+ * batch in parallel, which takes about as long as minting its own URL.
+ */
+public final class UploadUrlPool {
+
+  private static final String UPLOAD_PATH = "/data";
+  private static final int TARGET_SIZE = 5;
+  private static final long URL_LIFETIME_MILLIS = 10 * 60 * 1000;
+  private static final long MIN_LIFETIME_MILLIS = 5 * 60 * 1000;
+
+  private static final UploadUrlPool INSTANCE = new UploadUrlPool();
+
+  private static class UploadUrl {
+    final String url;
+    final long expiresAt;
+
+    UploadUrl(String url, long expiresAt) {
+      this.url = url;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /** oldest URLs first */
+  private final ConcurrentLinkedDeque<UploadUrl> urls = new ConcurrentLinkedDeque<>();
+
+  private UploadUrlPool() {}
+
+  public static UploadUrlPool getInstance() {
+    return INSTANCE;
+  }
+
+  /** Returns an upload URL nobody else has been given, minting a batch if the pool is empty. */
+  public String take() {
+    long now = System.currentTimeMillis();
+    UploadUrl uploadUrl;
+    while ((uploadUrl = urls.pollFirst()) != null) {
+      if (uploadUrl.expiresAt - now >= MIN_LIFETIME_MILLIS) {
+        return uploadUrl.url;
+      }
+    }
+    List<UploadUrl> minted = mintAll(TARGET_SIZE + 1);
+    if (minted.isEmpty()) {
+      return mint().url;
+    }
+    urls.addAll(minted.subList(1, minted.size()));
+    return minted.get(0).url;
+  }
+
+  /** Tops the pool up to TARGET_SIZE URLs, e.g. while the instance warms up. */
+  public void fill() {
+    long now = System.currentTimeMillis();
+    // drop URLs that would expire too soon to hand out
+    urls.removeIf(uploadUrl -> uploadUrl.expiresAt - now < MIN_LIFETIME_MILLIS);
+    urls.addAll(mintAll(TARGET_SIZE - urls.size()));
+  }
+
+  /** Mints up to count URLs in parallel, leaving out those that failed. */
+  private static List<UploadUrl> mintAll(int count) {
+    List<UploadUrl> minted = new ArrayList<>();
+    if (count <= 0) {
+      return minted;
+    }
+    ExecutorService pool = RequestThreads.newPool(count);
+    try {
+      List<Future<UploadUrl>> futures = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        futures.add(pool.submit(UploadUrlPool::mint));
+      }
+      for (Future<UploadUrl> future : futures) {
+        try {
+          minted.add(future.get());
+        } catch (ExecutionException e) {
+          System.err.println("Could not mint an upload URL: " + e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      pool.shutdownNow();
+    }
+    return minted;
+  }
+
+  private static UploadUrl mint() {
+    // measured from before the call, so the expiry is never overestimated
+    long expiresAt = System.currentTimeMillis() + URL_LIFETIME_MILLIS;
+    long start = System.nanoTime();
+    try {
+      return new UploadUrl(Clients.blobstore().createUploadUrl(UPLOAD_PATH), expiresAt);
+    } finally {
+      Metrics.UPLOAD_URL.recordSince(start);
+    }
+  }
+}
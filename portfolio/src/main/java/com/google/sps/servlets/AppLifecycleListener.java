@@ -0,0 +1,27 @@
+package com.google.sps.servlets;
+
+import com.google.sps.services.Clients;
+import com.google.sps.services.CommentEvents;
+import com.google.sps.services.Migrations;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Schedules the data migrations when an instance loads, and releases what the servlets of
+ * the instance share when it shuts down.
+ */
+@WebListener
+public class AppLifecycleListener implements ServletContextListener {
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    Migrations.schedule();
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    CommentEvents.getInstance().stop();
+    Clients.close();
+  }
+}
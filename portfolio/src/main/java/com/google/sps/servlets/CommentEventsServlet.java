@@ -0,0 +1,27 @@
+package com.google.sps.servlets;
+
+import com.google.sps.services.CommentEvents;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Long poll for comment inserts, deletes and updates, so the page can patch its list
+ * instead of refetching /data. Answers {"events": [...], "next": "cursor"} once there is
+ * something after the ?after= cursor, or with no events after a while; the client then
+ * polls again with the next cursor. App Engine standard buffers responses, so events can't be streamed;
+ * see CommentEvents. A waiting request is handed to CommentEvents and its thread released.
+ */
+@WebServlet(urlPatterns = "/comment-events", asyncSupported = true)
+public class CommentEventsServlet extends HttpServlet {
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    response.setContentType("application/json;");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-store");
+    CommentEvents.getInstance().poll(request, response, request.getParameter("after"));
+  }
+}
@@ -18,32 +18,31 @@ import com.google.appengine.api.blobstore.BlobInfo;
 import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
-import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
-import com.google.appengine.api.datastore.Cursor;
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.FetchOptions;
-import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
-import com.google.appengine.api.datastore.PreparedQuery;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.SortDirection;
-import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.images.ImagesService;
-import com.google.appengine.api.images.ImagesServiceFactory;
 import com.google.appengine.api.images.ServingUrlOptions;
 import com.google.appengine.api.images.ImagesServiceFailureException;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.users.User;
 import com.google.appengine.api.users.UserService;
-import com.google.appengine.api.users.UserServiceFactory;
-import com.google.cloud.language.v1.Document;
-import com.google.cloud.language.v1.LanguageServiceClient;
-import com.google.cloud.language.v1.Sentiment;
-import com.google.cloud.translate.Translate;
-import com.google.cloud.translate.TranslateOptions;
-import com.google.cloud.translate.Translation;
-import com.google.gson.Gson;
+import com.google.sps.data.CommentKeys;
+import com.google.sps.data.CommentOrder;
+import com.google.sps.data.CommentStore;
+import com.google.sps.data.CommentsVersion;
+import com.google.sps.data.ImageVariant;
+import com.google.sps.data.PrefetchCache;
+import com.google.sps.data.SentimentCache;
+import com.google.sps.services.Clients;
+import com.google.sps.services.CommentEvents;
+import com.google.sps.services.CommentPages;
+import com.google.sps.services.CompactUploads;
+import com.google.sps.services.Metrics;
+import com.google.sps.services.RequestThreads;
+import com.google.sps.services.SentimentPipeline;
+import com.google.sps.services.TranslationPipeline;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.lang.Long;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -55,100 +54,218 @@ import java.time.format.DateTimeFormatter;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /** Servlet that returns some example content. This file handles comment data */
 @WebServlet("/data")
 public class DataServlet extends HttpServlet {
-  
-  private static class Comment {
-    long id;
-    String name;
-    Long timestamp;
-    String content;
-    String imageUrl;
-    String mood;
-    float sentiment;
-    String cursor;
-
-    private Comment(long id, String name, Long timestamp, String content,
-        String imageUrl, String mood, float sentiment, String cursor) {
-      this.id = id;
-      this.name = name;
-      this.timestamp = timestamp;
-      this.content = content;
-      this.imageUrl = imageUrl;
-      this.mood = mood;
-      this.sentiment = sentiment;
-      this.cursor = cursor;
-    }
-  }
+
+  /** compaction, then the serving URL, run on a request thread so both can stop at the deadline */
+  private static final int POST_THREADS = 1;
+  private static final long UPLOAD_DEADLINE_MILLIS = 10 * 1000;
+  /** the most comments one page can ask for, bounding its query and translation */
+  private static final int MAX_PAGE_SIZE = 100;
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
     // Get the max num comments from input
     int maxNumComments = getMaxNumComments(request, 5);
 
-    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(maxNumComments);
-
-    // If this servlet is passed a cursor parameter, let's use it.
+    // A page either continues from a Datastore cursor, or starts below a comment order
+    // (keyset pagination, ?before=<order>). Keyset URLs are stable and cheap to resume.
     String startCursor = request.getParameter("cursor");
-    if (startCursor != null) {
-      fetchOptions.startCursor(Cursor.fromWebSafeString(startCursor));
+    Long before = getBefore(request);
+
+    // ?mine=true lists the current user's own comments; that is per user, so never shared
+    String language = request.getParameter("language");
+    if (Boolean.parseBoolean(request.getParameter("mine"))) {
+      writeOwnComments(response, maxNumComments, language);
+      return;
     }
 
-    Query query = new Query("Comment").addSort("timestamp", SortDirection.DESCENDING);
+    // Nothing has changed since the client's copy was made, so skip Datastore and Translate.
+    long version = CommentsVersion.current();
+    String etag = etag(version, maxNumComments, startCursor, before, language);
+    response.setHeader("ETag", etag);
+    response.setHeader("Cache-Control", "no-cache");
+    if (matchesEtag(request.getHeader("If-None-Match"), etag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    PreparedQuery preparedQuery = datastore.prepare(query);
+    // The newest page is served from memory while no comment has changed since it was built.
+    if (startCursor == null && before == null) {
+      CommentPages.RenderedPage page = CommentPages.firstPage(maxNumComments, language);
+      if (!page.isComplete()) {
+        // comments left untranslated shouldn't stick in the browser until the next post
+        response.setHeader("Cache-Control", "no-store");
+      }
+      writeJson(response, page.getJson());
+      return;
+    }
 
-    // limits preparedQuery to the user specified
-    QueryResultList<Entity> entities;
+    // Later keyset pages may have been read ahead by the request for the page before.
+    if (before != null) {
+      PrefetchCache.Page prefetched =
+          PrefetchCache.getInstance().get("before:" + before, maxNumComments, language);
+      if (prefetched != null) {
+        writeJson(response, prefetched.getJson());
+        return;
+      }
+    }
+
+    // A keyset page also reads the page after it, with the same query, so that it can be
+    // served from memory. Cursor pages can't be read ahead this way: the cursor returned for
+    // the longer query points past both pages.
+    boolean readAhead = before != null && maxNumComments > 0;
+    int querySize = readAhead ? 2 * maxNumComments : maxNumComments;
+
+    // limits the query to the user specified
+    List<Entity> entities;
     String encodedCursor;
     try {
-      entities = preparedQuery.asQueryResultList(fetchOptions);
-      Cursor originalCursor = entities.getCursor();
-      encodedCursor = originalCursor.toWebSafeString();
+      CommentStore.Page page =
+          Clients.comments().newest(querySize, startCursor, before);
+      entities = page.getComments();
+      encodedCursor = readAhead ? null : page.getNextCursor();
     } catch (IllegalArgumentException e) {
+      // don't let the browser revalidate an error against the page's ETag
+      response.setHeader("Cache-Control", "no-store");
       response.setContentType("text/html;");
       response.getWriter().println("Invalid cursor: " + e);
       return;
     }
 
-    // Do the translation.
-    String language = request.getParameter("language");
-    Translate translate = TranslateOptions.getDefaultInstance().getService();
-
-    List<Comment> comments = new ArrayList<>();
-    for (Entity entity : entities) {
-      long id = entity.getKey().getId();
-      String name = (String) entity.getProperty("name");
-      Long timestamp = ((Number) entity.getProperty("timestamp")).longValue();
-      String content = (String) entity.getProperty("content");
-      Translation translation = translate.translate(content, Translate.TranslateOption.targetLanguage(language));
-      String translatedText = translation.getTranslatedText();
-      String imageUrl = (String) entity.getProperty("image");
-      String mood = (String) entity.getProperty("mood");
-      float sentiment = ((Number) entity.getProperty("sentiment")).floatValue();
-      // TODO: more efficient method of storing cursor
-      String cursor = encodedCursor;
-
-      Comment comment = new Comment(id, name, timestamp, translatedText, imageUrl, mood, sentiment, cursor);
-      comments.add(comment);
+    // Do the translation. Cache misses are sent to Translate in batched calls instead of one
+    // round-trip per comment, and only waited for until the translation budget runs out.
+    CommentPages.TranslatedContents translatedContents =
+        CommentPages.translateContents(entities, language);
+    int pageEnd = Math.min(entities.size(), maxNumComments);
+    List<Entity> pageEntities = entities.subList(0, pageEnd);
+    CommentPages.TranslatedContents pageContents = translatedContents.slice(0, pageEnd);
+    if (!pageContents.isComplete()) {
+      response.setHeader("Cache-Control", "no-store");
+    }
+
+    // Each comment is written straight to the response, and the cursor is sent once for the page.
+    Long nextBefore = CommentPages.lastOrder(pageEntities);
+    setJsonContentType(response);
+    CommentPages.writePage(
+        response.getWriter(), pageEntities, pageContents, encodedCursor, nextBefore);
+    // a full page means the client may ask for the next one, at ?before=nextBefore
+    if (readAhead && pageEnd == maxNumComments) {
+      keepNextPage("before:" + nextBefore, entities.subList(pageEnd, entities.size()),
+          translatedContents.slice(pageEnd, entities.size()), maxNumComments, language,
+          version);
+    }
+  }
+
+  /**
+   * Leaves the page read ahead after a full keyset page in the PrefetchCache, at the
+   * position the client will ask for it, unless some of it is untranslated.
+   */
+  private static void keepNextPage(String position, List<Entity> entities,
+      CommentPages.TranslatedContents translatedContents, int pageSize, String language,
+      long version) throws IOException {
+    if (!translatedContents.isComplete()) {
+      // the page is translated again, hopefully in full, when it is requested
+      return;
     }
+    StringWriter json = new StringWriter();
+    CommentPages.writePage(json, entities, translatedContents, null,
+        CommentPages.lastOrder(entities));
+    PrefetchCache.getInstance().put(position, pageSize, language, version, json.toString());
+  }
 
-    Gson gson = new Gson();
+  /**
+   * Writes the newest comments of the current user. The store reads them consistently,
+   * so a comment shows up as soon as it has been posted.
+   */
+  private void writeOwnComments(HttpServletResponse response, int pageSize, String language)
+      throws IOException {
+    response.setHeader("Cache-Control", "private, no-store");
+    UserService userService = Clients.users();
+    if (!userService.isUserLoggedIn()) {
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Log in to see your comments.");
+      return;
+    }
+    User user = userService.getCurrentUser();
+    List<Entity> entities = Clients.comments()
+        .postedBy(CommentKeys.posterKeys(user.getUserId(), user.getEmail()), pageSize);
+    CommentPages.TranslatedContents translatedContents =
+        CommentPages.translateContents(entities, language);
+
+    setJsonContentType(response);
+    CommentPages.writePage(response.getWriter(), entities, translatedContents, null, null);
+  }
 
-    // Send the JSON as the response
+  /**
+   * Returns the ?before= order of a keyset page, or null if the parameter
+   * is missing or not a number.
+   */
+  private Long getBefore(HttpServletRequest request) {
+    String beforeString = request.getParameter("before");
+    if (beforeString == null) {
+      return null;
+    }
+    try {
+      return Long.parseLong(beforeString);
+    } catch (NumberFormatException e) {
+      System.err.println("Could not convert " + beforeString + " to long");
+      return null;
+    }
+  }
+
+  /**
+   * Returns a strong ETag for a page: the same comments version and query parameters
+   * always produce the same response.
+   */
+  private static String etag(
+      long version, int pageSize, String cursor, Long before, String language) {
+    return String.format(
+        "\"%d-%08x\"", version, Objects.hash(pageSize, cursor, before, language));
+  }
+
+  /** Returns true if the If-None-Match header lists the given ETag. */
+  private static boolean matchesEtag(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals(etag) || candidate.equals("*")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void setJsonContentType(HttpServletResponse response) {
     response.setContentType("application/json; charset=UTF-8");
     response.setCharacterEncoding("UTF-8");
-    response.getWriter().println(gson.toJson(comments));
+  }
+
+  /** Sends the JSON as the response. */
+  private void writeJson(HttpServletResponse response, String json) throws IOException {
+    setJsonContentType(response);
+    response.getWriter().write(json);
   }
 
   /**
    * Returns the maximum number of comments the page should display
-   * as entered by the user, or a default value if the choice was invalid.
+   * as entered by the user, at most MAX_PAGE_SIZE, or a default value if the choice was invalid.
    */
   private int getMaxNumComments(HttpServletRequest request, int input) {    
     // get the input from URL query String
@@ -168,62 +285,119 @@ public class DataServlet extends HttpServlet {
       System.err.println("User input " + maxNumInt + " is out of range.");
       return input;
     }
-    return maxNumInt;
+    return Math.min(maxNumInt, MAX_PAGE_SIZE);
   }
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    UserService userService = UserServiceFactory.getUserService();
+    UserService userService = Clients.users();
     // checked for user log in status on the client side
-    // get email from userservice
-    String userEmail = userService.getCurrentUser().getEmail();
+    // get email and user id from userservice
+    User user = userService.getCurrentUser();
+    String userEmail = user.getEmail();
     // Get the nickname and comment from the post request
     String userName = getParam(request, "name-input", "");
     String comment = getParam(request, "comment-input", "");
 
-    // Get the URL of the image that the user uploaded to Blobstore.
-    String imageUrl = (String) getUploadedFileUrl(request, "image");
+    // Get the URLs of the image that the user uploaded to Blobstore, one per size.
+    Map<ImageVariant, String> imageUrls;
+    try {
+      imageUrls = getUploadedFileUrls(request, "image");
+    } catch (ImagesServiceFailureException e) {
+      System.err.println(e.getMessage());
+      response.setContentType("text/html");
+      response.getWriter().println("Sorry, your image could not be uploaded. Please try again.");
+      return;
+    }
 
     String mood = getParam(request, "mood", "Happy");
     if (userName.isEmpty()) {
       userName = userEmail;
     }
     // TODO: a more elegant way of error checking/notifying user 
-    if (comment.isEmpty() && imageUrl == null) {
+    if (comment.isEmpty() && imageUrls.isEmpty()) {
       response.setContentType("text/html");
       response.getWriter().println("Please enter a valid comment or upload an image.");
       return;
     } 
 
-    // perform sentiment analysis
-    float score = -2; // sentinel value
-    if (!comment.isEmpty()) {
-      Document doc = Document.newBuilder().setContent(comment).setType(Document.Type.PLAIN_TEXT).build();
-      LanguageServiceClient languageService = LanguageServiceClient.create();
-      Sentiment sentiment = languageService.analyzeSentiment(doc).getDocumentSentiment();
-      score = sentiment.getScore();
-      languageService.close();
-    }
+    Entity commentEntity = newCommentEntity(user.getUserId(), userEmail, userName, comment, mood,
+        imageUrls, Instant.now());
 
-    // get the current timestamp
-    Instant currentTimeMillisInstant = Instant.now();
-    long currentTimeMillis = currentTimeMillisInstant.toEpochMilli();
-    // TODO: look into if two instances of comments are posted at the same milisecond
+    // the stored comment has its key completed
+    commentEntity = Clients.comments().put(commentEntity);
+    // the cached first pages are now out of date on every instance
+    long version = CommentsVersion.bump();
+    CommentEvents.getInstance().publishInsert(version, commentEntity);
+    queueTasks(commentEntity, !comment.isEmpty());
+  
+    // Redirect back to the HTML page.
+    response.sendRedirect("/index.html");
+  }
+
+  /**
+   * Queues the scoring of a new comment's sentiment and, if it has text, the detection of its
+   * language along with its first translations, so posting doesn't wait on either.
+   */
+  private static void queueTasks(Entity commentEntity, boolean hasText) {
+    List<TaskOptions> tasks = new ArrayList<>();
+    if (commentEntity.hasProperty(SentimentPipeline.PENDING_PROPERTY)) {
+      tasks.add(SentimentPipeline.task(commentEntity.getKey()));
+    }
+    if (hasText) {
+      tasks.add(TranslationPipeline.task(commentEntity.getKey()));
+    }
+    if (tasks.isEmpty()) {
+      return;
+    }
+    try {
+      QueueFactory.getDefaultQueue().add(tasks);
+    } catch (RuntimeException e) {
+      // the comment is stored; the sentiment sweep scores it and translations happen on demand
+      System.err.println("Could not queue tasks for " + commentEntity.getKey() + ": " + e);
+    }
+  }
 
-    Entity commentEntity = new Entity("Comment");
+  /**
+   * Returns a new, not yet stored comment posted at the given time,
+   * in the poster's entity group (see CommentKeys). Its language is unknown until the
+   * TranslationPipeline detects it.
+   */
+  public static Entity newCommentEntity(String userId, String userEmail, String userName,
+      String comment, String mood, Map<ImageVariant, String> imageUrls,
+      Instant postedAt) {
+    Entity commentEntity = new Entity("Comment", CommentKeys.posterKey(userId));
     commentEntity.setProperty("email", userEmail);
     commentEntity.setProperty("name", userName);
-    commentEntity.setProperty("timestamp", currentTimeMillis);
+    commentEntity.setProperty("timestamp", postedAt.toEpochMilli());
+    // comments posted in the same millisecond are told apart by their order
+    commentEntity.setProperty("order", CommentOrder.next());
     commentEntity.setProperty("content", comment);
-    commentEntity.setProperty("image", imageUrl);
+    // every variant is set, even to null, so projection queries can return the comment
+    for (ImageVariant variant : ImageVariant.values()) {
+      commentEntity.setProperty(variant.getProperty(), imageUrls.get(variant));
+    }
     commentEntity.setProperty("mood", mood);
-    commentEntity.setProperty("sentiment", score);
+    // set even though unknown, like the image variants, for the projection queries
+    commentEntity.setProperty("language", null);
+    // Sentiment is scored in the background so posting only waits on the put,
+    // unless this instance has already scored the same text.
+    Float knownScore = comment.isEmpty() ? null
+        : SentimentCache.getInstance().getCached(SentimentCache.contentHash(comment));
+    if (knownScore != null) {
+      commentEntity.setProperty("sentiment", knownScore);
+    } else {
+      commentEntity.setProperty("sentiment", SentimentPipeline.NO_SCORE);
+      if (!comment.isEmpty()) {
+        commentEntity.setProperty(SentimentPipeline.PENDING_PROPERTY, true);
+      }
+    }
+    return commentEntity;
+  }
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    datastore.put(commentEntity);
-  
-    // Redirect back to the HTML page.
-    response.sendRedirect("/index.html");
+  /** Returns the time left until deadline, never negative. */
+  private static long remainingMillis(long deadline) {
+    return Math.max(0, deadline - System.currentTimeMillis());
   }
 
   /**
@@ -238,34 +412,124 @@ public class DataServlet extends HttpServlet {
     return value;
   }
 
-  private String getUploadedFileUrl(HttpServletRequest request, String formInputElementName) {
-    BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+  /**
+   * Returns the serving URL of each ImageVariant of the image uploaded with the form,
+   * or an empty map if there is none.
+   * Throws ImagesServiceFailureException if the upload couldn't be processed in time;
+   * the uploaded blob and any compact copy of it are deleted in that case.
+   */
+  private Map<ImageVariant, String> getUploadedFileUrls(
+      HttpServletRequest request, String formInputElementName) {
+    Map<ImageVariant, String> urls = new EnumMap<>(ImageVariant.class);
+    BlobstoreService blobstoreService = Clients.blobstore();
     Map<String, List<BlobKey>> blobs = blobstoreService.getUploads(request);
     List<BlobKey> blobKeys = blobs.get(formInputElementName);
 
     // User submitted form without selecting a file, so we can't get a URL. (dev server)
     if (blobKeys == null || blobKeys.isEmpty()) {
-      return null;
+      return urls;
     }
 
     // Our form only contains a single file input, so get the first index.
     BlobKey blobKey = blobKeys.get(0);
 
-    // User submitted form without selecting a file, so we can't get a URL. (live server)
-    BlobInfo blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
-    if (blobInfo.getSize() == 0) {
-      blobstoreService.delete(blobKey);
-      return null;
+    // The blob is checked, then replaced with a compact re-encoded copy, then given a serving
+    // URL that all variants are derived from, all under one deadline. The thread belongs to
+    // this request and is stopped before it ends.
+    ImagesService imagesService = Clients.images();
+    ExecutorService pool = RequestThreads.newPool(POST_THREADS);
+    Future<BlobKey> compactFuture = null;
+    Future<String> urlFuture = null;
+    BlobKey servedKey = blobKey;
+    long deadline = System.currentTimeMillis() + UPLOAD_DEADLINE_MILLIS;
+    try {
+      BlobInfo blobInfo;
+      long start = System.nanoTime();
+      try {
+        blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
+      } finally {
+        Metrics.BLOB_INFO.recordSince(start);
+      }
+      // User submitted form without selecting a file, so we can't get a URL. (live server)
+      if (blobInfo == null || blobInfo.getSize() == 0) {
+        blobstoreService.delete(blobKey);
+        return urls;
+      }
+
+      // We could check the validity of the file here, e.g. to make sure it's an image file
+      // https://stackoverflow.com/q/10779564/873165
+
+      compactFuture = pool.submit(() -> {
+        long compactStart = System.nanoTime();
+        try {
+          return CompactUploads.compact(blobKey);
+        } finally {
+          Metrics.UPLOAD_COMPACTION.recordSince(compactStart);
+        }
+      });
+      servedKey = compactFuture.get(remainingMillis(deadline), TimeUnit.MILLISECONDS);
+
+      // Use ImagesService to get a URL that points to the uploaded file.
+      ServingUrlOptions options = ServingUrlOptions.Builder.withBlobKey(servedKey);
+      urlFuture = pool.submit(() -> {
+        long urlStart = System.nanoTime();
+        try {
+          return imagesService.getServingUrl(options);
+        } finally {
+          Metrics.SERVING_URL.recordSince(urlStart);
+        }
+      });
+      String servingUrl =
+          relativeToLocalhost(urlFuture.get(remainingMillis(deadline), TimeUnit.MILLISECONDS));
+      for (ImageVariant variant : ImageVariant.values()) {
+        urls.put(variant, variant.url(servingUrl));
+      }
+      if (!servedKey.equals(blobKey)) {
+        // the compact copy is served in its place
+        deleteQuietly(blobstoreService, blobKey);
+      }
+      return urls;
+    } catch (ExecutionException | TimeoutException e) {
+      if (urlFuture != null) {
+        urlFuture.cancel(true);
+      }
+      // a copy that is cancelled while compacting deletes itself; one that just finished
+      // is deleted with the original
+      if (compactFuture != null && !compactFuture.cancel(true) && servedKey.equals(blobKey)) {
+        servedKey = finishedCopy(compactFuture, blobKey);
+      }
+      blobstoreService.delete(blobKey, servedKey);
+      throw new ImagesServiceFailureException("Could not process upload " + blobKey + ": " + e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ImagesServiceFailureException("Interrupted processing upload " + blobKey);
+    } finally {
+      pool.shutdownNow();
     }
+  }
 
-    // We could check the validity of the file here, e.g. to make sure it's an image file
-    // https://stackoverflow.com/q/10779564/873165
+  /** Returns the key compacting produced, which is the upload's own key if it made none. */
+  private static BlobKey finishedCopy(Future<BlobKey> compactFuture, BlobKey upload) {
+    try {
+      return compactFuture.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return upload;
+    } catch (ExecutionException | CancellationException e) {
+      return upload;
+    }
+  }
 
-    // Use ImagesService to get a URL that points to the uploaded file.
-    ImagesService imagesService = ImagesServiceFactory.getImagesService();
-    ServingUrlOptions options = ServingUrlOptions.Builder.withBlobKey(blobKey);
-    String url = imagesService.getServingUrl(options);
+  /** Deletes a blob nothing refers to any more; only logs if that fails. */
+  private static void deleteQuietly(BlobstoreService blobstoreService, BlobKey blobKey) {
+    try {
+      blobstoreService.delete(blobKey);
+    } catch (RuntimeException e) {
+      System.err.println("Could not delete upload " + blobKey + ": " + e);
+    }
+  }
 
+  private static String relativeToLocalhost(String url) {
     // GCS's localhost preview is not actually on localhost,
     // so make the URL relative to the current domain.
     if(url.startsWith("http://localhost:8080/")){
@@ -1,44 +1,99 @@
 package com.google.sps.servlets;
 
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
-import com.google.appengine.api.users.UserService;
-import com.google.appengine.api.users.UserServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.gson.Gson;
+import com.google.sps.data.CommentKeys;
+import com.google.sps.data.CommentsVersion;
+import com.google.sps.data.TranslationCache;
+import com.google.sps.services.Clients;
+import com.google.sps.services.CommentEvents;
 import java.io.IOException;
-import java.lang.Long;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-/** Servlet that handles deletions of comments from Datastore */
+/**
+ * Servlet that handles deletions of comments from the CommentStore.
+ * Deletes one comment given ?id=, or up to MAX_IDS given a comma separated ?ids= list,
+ * in which case the result for each id is sent back as JSON. Ids are the comment keys sent
+ * as "id" by /data (see CommentJson).
+ * A key only counts if it lies under one of the current user's poster keys (see CommentKeys),
+ * so a user can only ever delete their own comments.
+ */
 @WebServlet("/delete-data")
 public class DeleteDataServlet extends HttpServlet {
 
+  private static final int MAX_IDS = 100;
+
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String ids = request.getParameter("ids");
+    if (ids != null) {
+      String[] idList = ids.split(",");
+      if (idList.length > MAX_IDS) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "At most " + MAX_IDS + " comments can be deleted at once.");
+        return;
+      }
+      response.setContentType("application/json;");
+      response.getWriter().println(new Gson().toJson(deleteAll(idList)));
+      return;
+    }
+
+    String id = request.getParameter("id");
     response.setContentType("text/plain;");
-    UserService userService = UserServiceFactory.getUserService();
-    long id = Long.parseLong(request.getParameter("id"));
-    
-    Key commentKey = KeyFactory.createKey("Comment", id);
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    response.getWriter().println(id != null && "deleted".equals(deleteAll(id).get(id))
+        ? "Comment deleted."
+        : "Comment not found. You can only delete your own comments.");
+  }
 
-    String posterEmail = "";
-    String userEmail = userService.getCurrentUser().getEmail();
-    try {
-      posterEmail = (String) datastore.get(commentKey).getProperty("email");
-    } catch (Exception e) {
-      response.getWriter().println(e);
-      return;
+  /**
+   * Deletes every listed comment the current user posted. A key under one of the user's
+   * poster keys is theirs whether or not it still exists, so the comments are deleted with
+   * their translations in one batched write, without reading them first; deleting a comment
+   * that is already gone does nothing. Returns a map from each id to "deleted", "not found"
+   * (which includes other users' comments) or "invalid id".
+   */
+  private Map<String, String> deleteAll(String... ids) {
+    Map<String, String> results = new LinkedHashMap<>();
+    List<Key> owned = new ArrayList<>();
+    User user = Clients.users().getCurrentUser();
+    List<Key> posterKeys = CommentKeys.posterKeys(user.getUserId(), user.getEmail());
+    for (String id : ids) {
+      id = id.trim();
+      Key key;
+      try {
+        key = KeyFactory.stringToKey(id);
+      } catch (IllegalArgumentException e) {
+        results.put(id, "invalid id");
+        continue;
+      }
+      if (key.getKind().equals("Comment") && posterKeys.contains(key.getParent())) {
+        owned.add(key);
+        results.put(id, "deleted");
+      } else {
+        results.put(id, "not found");
+      }
     }
-    if (posterEmail.equals(userEmail)) {
-      datastore.delete(commentKey);
-      response.getWriter().println("Comment deleted.");
-    } else {
-      response.getWriter().println("Sorry, you can only delete your own comments.");
+    if (!owned.isEmpty()) {
+      Clients.comments().delete(owned);
+      deleted(owned);
     }
+    return results;
+  }
+
+  /** Lets caches and listening clients know that comments are gone. */
+  private void deleted(List<Key> commentKeys) {
+    long version = CommentsVersion.bump();
+    CommentEvents.getInstance().publishDeletes(version, commentKeys);
+    // the store deleted the stored translations with the comments; forget the ones in memory
+    TranslationCache.getInstance().invalidate(null, commentKeys);
   }
 }
@@ -0,0 +1,88 @@
+package com.google.sps.servlets;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.sps.services.CommentPages;
+import com.google.sps.services.UploadUrlPool;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves index.html with the login link, an upload URL and the first page of comments
+ * already filled in as window.initialState, so the page is usable without first making
+ * /login-status, /blob-url and /data requests. script.js falls back to those requests
+ * for anything missing from the initial state, e.g. when rendering it failed.
+ */
+@WebServlet({"", "/index.html"})
+public class IndexServlet extends HttpServlet {
+
+  /** placeholder in index.html replaced with the initial state script */
+  private static final String MARKER = "<!-- initial state -->";
+  /** must match the default of the max-num-comments input */
+  private static final int FIRST_PAGE_SIZE = 5;
+
+  private String template;
+
+  @Override
+  public void init() throws ServletException {
+    try (InputStream in = getServletContext().getResourceAsStream("/index.html")) {
+      if (in == null) {
+        throw new ServletException("index.html is missing from the webapp");
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+        out.write(buffer, 0, read);
+      }
+      template = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new ServletException("Could not read index.html", e);
+    }
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // the login link and upload URL differ per user and per visit
+    response.setHeader("Cache-Control", "private, no-cache");
+    response.setContentType("text/html; charset=UTF-8");
+    response.getWriter().print(
+        template.replace(MARKER, "<script>window.initialState = " + initialState() + ";</script>"));
+  }
+
+  /**
+   * Returns the initial state as JSON. Each part is optional, so one failing call only costs
+   * the client that one request.
+   */
+  private String initialState() {
+    JsonObject state = new JsonObject();
+    try {
+      state.addProperty("loginUrl", LoginStatusServlet.loginStatusUrl());
+    } catch (RuntimeException e) {
+      System.err.println("Could not render login status: " + e);
+    }
+    try {
+      state.addProperty("uploadUrl", UploadUrlPool.getInstance().take());
+    } catch (RuntimeException e) {
+      System.err.println("Could not render upload URL: " + e);
+    }
+    try {
+      JsonObject firstPage = new JsonObject();
+      firstPage.addProperty("pageSize", FIRST_PAGE_SIZE);
+      firstPage.add(
+          "page", JsonParser.parseString(CommentPages.firstPage(FIRST_PAGE_SIZE, null).getJson()));
+      state.add("firstPage", firstPage);
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Could not render first comment page: " + e);
+    }
+    // Gson escapes <, > and & in strings, so comment text can't close the script tag
+    return new Gson().toJson(state);
+  }
+}
@@ -1,7 +1,7 @@
 package com.google.sps.servlets;
 
 import com.google.appengine.api.users.UserService;
-import com.google.appengine.api.users.UserServiceFactory;
+import com.google.sps.services.Clients;
 import java.io.IOException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -14,15 +14,18 @@ public class LoginStatusServlet extends HttpServlet {
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
     response.setContentType("text/plain");
-    UserService userService = UserServiceFactory.getUserService();
+    response.getWriter().println(loginStatusUrl());
+  }
+
+  /**
+   * Returns a log out link if the user is currently logged in, otherwise a log in link.
+   * Also rendered into the index page by IndexServlet.
+   */
+  static String loginStatusUrl() {
+    UserService userService = Clients.users();
     if (userService.isUserLoggedIn()) {
-      String logoutUrl = userService.createLogoutURL("/index.html");
-      // sends a log out link to client if user is currently logged in
-      response.getWriter().println(logoutUrl);
-    } else {
-      String loginUrl = userService.createLoginURL("/index.html");
-      // sends a log in link to client if user is currently logged out
-      response.getWriter().println(loginUrl);
+      return userService.createLogoutURL("/index.html");
     }
+    return userService.createLoginURL("/index.html");
   }
 }
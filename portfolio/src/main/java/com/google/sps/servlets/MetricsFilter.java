@@ -0,0 +1,40 @@
+package com.google.sps.servlets;
+
+import com.google.sps.services.Metrics;
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Records how long every request takes in the latency histogram of its servlet route.
+ * Requests that go async, like /comment-events long polls, are left out since their
+ * handler returning says nothing about how long they take.
+ */
+@WebFilter(urlPatterns = "/*", asyncSupported = true)
+public class MetricsFilter implements Filter {
+
+  @Override
+  public void init(FilterConfig filterConfig) {}
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    long start = System.nanoTime();
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      if (!request.isAsyncStarted()) {
+        Metrics.route(((HttpServletRequest) request).getServletPath()).recordSince(start);
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {}
+}
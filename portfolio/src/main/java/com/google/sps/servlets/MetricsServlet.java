@@ -0,0 +1,24 @@
+package com.google.sps.servlets;
+
+import com.google.sps.services.Metrics;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves this instance's latency histograms in the Prometheus text format.
+ * See Metrics for what is recorded. Only the app's admins can read it: through the security
+ * constraint in web.xml, App Engine sends visitors to sign in and refuses other users.
+ */
+@WebServlet("/metrics")
+public class MetricsServlet extends HttpServlet {
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    response.setHeader("Cache-Control", "no-store");
+    response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+    Metrics.writePrometheus(response.getWriter());
+  }
+}
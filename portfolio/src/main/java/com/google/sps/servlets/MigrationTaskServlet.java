@@ -0,0 +1,23 @@
+package com.google.sps.servlets;
+
+import com.google.sps.services.Migrations;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Push queue task that runs the data migrations not finished yet. Answers 500 if one of them
+ * failed, so the queue retries the task.
+ */
+@WebServlet("/tasks/migrate")
+public class MigrationTaskServlet extends HttpServlet {
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!Migrations.run()) {
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Retry later.");
+    }
+  }
+}
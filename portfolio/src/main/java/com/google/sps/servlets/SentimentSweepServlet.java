@@ -0,0 +1,20 @@
+package com.google.sps.servlets;
+
+import com.google.sps.services.SentimentPipeline;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Cron job that queues sentiment tasks for comments that are still pending, see cron.xml. */
+@WebServlet("/tasks/sentiment-sweep")
+public class SentimentSweepServlet extends HttpServlet {
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    SentimentPipeline.sweep();
+    response.setContentType("text/plain");
+    response.getWriter().println("Swept.");
+  }
+}
@@ -0,0 +1,23 @@
+package com.google.sps.servlets;
+
+import com.google.sps.services.SentimentPipeline;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Push queue task that scores the sentiment of the comments named by its ?key= parameters.
+ * Answers 500 when some could not be scored for now, so the queue retries the task.
+ */
+@WebServlet("/tasks/sentiment")
+public class SentimentTaskServlet extends HttpServlet {
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!SentimentPipeline.score(TaskKeys.parse(request))) {
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Retry later.");
+    }
+  }
+}
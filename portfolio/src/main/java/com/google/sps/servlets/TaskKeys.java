@@ -0,0 +1,33 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+
+/** Reads the comment keys a task names in its ?key= parameters. */
+final class TaskKeys {
+
+  private TaskKeys() {}
+
+  /**
+   * Returns the keys, leaving out malformed ones; retrying the task wouldn't fix those, so
+   * they are only logged.
+   */
+  static List<Key> parse(HttpServletRequest request) {
+    List<Key> keys = new ArrayList<>();
+    String[] values = request.getParameterValues("key");
+    if (values == null) {
+      return keys;
+    }
+    for (String value : values) {
+      try {
+        keys.add(KeyFactory.stringToKey(value));
+      } catch (IllegalArgumentException e) {
+        System.err.println("Ignoring malformed key in task: " + value);
+      }
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,21 @@
+package com.google.sps.servlets;
+
+import com.google.sps.services.TranslationPipeline;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Push queue task that detects the language of the comments named by its ?key= parameters
+ * and translates them into the hot languages. A failure answers 500, so the queue retries it.
+ */
+@WebServlet("/tasks/translate")
+public class TranslationTaskServlet extends HttpServlet {
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    TranslationPipeline.process(TaskKeys.parse(request));
+  }
+}
@@ -0,0 +1,26 @@
+package com.google.sps.servlets;
+
+import com.google.sps.services.Clients;
+import com.google.sps.services.UploadUrlPool;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * App Engine sends a request to /_ah/warmup before routing users to a new instance.
+ * Creating the cloud clients and minting upload URLs here keeps their start-up cost off the
+ * first user request.
+ */
+@WebServlet("/_ah/warmup")
+public class WarmupServlet extends HttpServlet {
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    Clients.warmUp();
+    UploadUrlPool.getInstance().fill();
+    response.setContentType("text/plain");
+    response.getWriter().println("Warmed up.");
+  }
+}
@@ -35,6 +35,7 @@ function addRandomGreeting() {
  */
 function createListElementForComment(entry) {
   const liElement = document.createElement('li');
+  liElement.dataset.id = entry.id;
   const nameElement = document.createElement('h4');
   nameElement.innerText = 'Posted by: ' + entry.name;
   liElement.appendChild(nameElement);
@@ -44,12 +45,17 @@ function createListElementForComment(entry) {
   const commentElement = document.createElement('p');
   commentElement.innerText = entry.content;
   liElement.appendChild(commentElement);
-  if (entry.sentiment !== undefined && entry.sentiment !== -2) {
-    const sentimentElement = document.createElement('label');
-    sentimentElement.innerHTML = 'Sentiment score: ' + entry.sentiment;
-    liElement.appendChild(sentimentElement);
+  if (entry.translated === false) {
+    const untranslatedElement = document.createElement('label');
+    untranslatedElement.innerText = '(Not translated right now, shown in the original)';
+    liElement.appendChild(untranslatedElement);
     liElement.appendChild(document.createElement('br'));
   }
+  // kept even while there is no score, so an update event can fill it in
+  const sentimentElement = document.createElement('span');
+  sentimentElement.className = 'sentiment';
+  showSentiment(sentimentElement, entry.sentiment);
+  liElement.appendChild(sentimentElement);
   if (entry.mood !== undefined) {
     const moodText = document.createElement('label');
     moodText.innerHTML = 'Mood: ';
@@ -64,9 +70,13 @@ function createListElementForComment(entry) {
   }
   console.log('image url fetching: ' + entry.imageUrl);
   if (entry.imageUrl !== undefined) {
+    // show the card-sized variant, linking to the full-size image
+    const imageLink = document.createElement('a');
+    imageLink.href = entry.imageUrl;
     const imageElement = document.createElement('img');
-    imageElement.src = entry.imageUrl;
-    liElement.appendChild(imageElement);
+    imageElement.src = entry.imageCardUrl !== undefined ? entry.imageCardUrl : entry.imageUrl;
+    imageLink.appendChild(imageElement);
+    liElement.appendChild(imageLink);
     const lineBreak = document.createElement('br');
     liElement.appendChild(lineBreak);
   }
@@ -79,9 +89,6 @@ function createListElementForComment(entry) {
     refreshComments();
   })
   liElement.appendChild(deleteButtonElement);
-  // TODO: find a more efficient way to update current cursor
-  const nextPageElement = document.getElementById('next-page');
-  nextPageElement.innerHTML = entry.cursor;
   return liElement;
 }
 
@@ -94,6 +101,25 @@ function epochToLocale(epoch) {
   return time.toLocaleString();
 }
 
+/**
+ * True while the newest comments are displayed untranslated,
+ * so pushed comments can be added to the list as they are
+ */
+var showingNewestComments = true;
+
+/**
+ * Returns a value IndexServlet rendered into the page, at most once,
+ * or undefined if it is missing so the caller fetches it instead
+ */
+function takeInitialState(key) {
+  if (window.initialState === undefined || window.initialState[key] === undefined) {
+    return undefined;
+  }
+  const value = window.initialState[key];
+  delete window.initialState[key];
+  return value;
+}
+
 /**
  * After user changes the max num of comments to display
  * refreshes the comment section
@@ -111,6 +137,8 @@ function refreshComments(anotherQueryString) {
     previousComments.removeChild(previousComments.firstChild);
   }
   
+  showingNewestComments = anotherQueryString === undefined;
+
   // encode user input parameter as a query string embedded in the URL
   var maxCommentsQuery = updateQueryString('max-num-comments', maxNumComments);
   // fetch from Datastroe and repopulate comment section
@@ -118,12 +146,92 @@ function refreshComments(anotherQueryString) {
   if (anotherQueryString !== undefined) {
     queryString += '&' + anotherQueryString;
   }
-  fetch(queryString).then(response => response.json()).then(text => {
-    const commentsContainer = document.getElementById('previous-comments');
-    text.forEach(entry => {
-      commentsContainer.appendChild(createListElementForComment(entry));
-    });
+  // the newest page may already be rendered into index.html
+  const firstPage = showingNewestComments ? takeInitialState('firstPage') : undefined;
+  if (firstPage !== undefined && String(firstPage.pageSize) === String(maxNumComments)) {
+    showCommentsPage(firstPage.page);
+    return;
+  }
+  fetch(queryString).then(response => response.json()).then(showCommentsPage);
+}
+
+/**
+ * Adds a page of comments to the comment section
+ */
+function showCommentsPage(page) {
+  const commentsContainer = document.getElementById('previous-comments');
+  page.comments.forEach(entry => {
+    commentsContainer.appendChild(createListElementForComment(entry));
   });
+  // where the next page starts is sent once per page
+  const nextPageElement = document.getElementById('next-page');
+  nextPageElement.innerHTML = page.nextBefore !== undefined ? page.nextBefore : '';
+}
+
+/**
+ * Listens for comments posted or deleted by other visitors
+ * and patches the comment section instead of reloading it.
+ * Long polls /comment-events, polling again with the cursor each answer ends with
+ */
+function listenForCommentEvents(cursor) {
+  const url = cursor === undefined ? '/comment-events' : '/comment-events?after=' + encodeURIComponent(cursor);
+  fetch(url).then(response => {
+    if (!response.ok) {
+      throw new Error(response.statusText);
+    }
+    return response.json();
+  }).then(result => {
+    result.events.forEach(handleCommentEvent);
+    listenForCommentEvents(result.next);
+  }).catch(() => {
+    // the server may be restarting; try again in a while
+    setTimeout(() => listenForCommentEvents(cursor), 5000);
+  });
+}
+
+/**
+ * Shows a sentiment score in the element, or hides it if there is none (-2)
+ */
+function showSentiment(sentimentElement, sentiment) {
+  sentimentElement.innerHTML = '';
+  sentimentElement.hidden = sentiment === undefined || sentiment === -2;
+  if (!sentimentElement.hidden) {
+    const labelElement = document.createElement('label');
+    labelElement.innerText = 'Sentiment score: ' + sentiment;
+    sentimentElement.appendChild(labelElement);
+    sentimentElement.appendChild(document.createElement('br'));
+  }
+}
+
+/**
+ * Applies one comment event to the comment section
+ */
+function handleCommentEvent(event) {
+  if (event.type === 'insert') {
+    if (!showingNewestComments) {
+      return;
+    }
+    const commentsContainer = document.getElementById('previous-comments');
+    commentsContainer.insertBefore(createListElementForComment(event.comment), commentsContainer.firstChild);
+    // keep the number of comments the user asked for
+    const maxNumComments = document.getElementById('max-num-comments').value;
+    while (commentsContainer.children.length > maxNumComments) {
+      commentsContainer.removeChild(commentsContainer.lastChild);
+    }
+  } else if (event.type === 'delete') {
+    const commentElement = document.querySelector('#previous-comments li[data-id="' + event.id + '"]');
+    if (commentElement !== null) {
+      commentElement.remove();
+    }
+  } else if (event.type === 'update') {
+    const sentimentElement = document.querySelector('#previous-comments li[data-id="' + event.id + '"] .sentiment');
+    if (sentimentElement !== null) {
+      showSentiment(sentimentElement, event.sentiment);
+    }
+  } else if (event.type === 'changed' && showingNewestComments) {
+    // the events of some change are lost, so the details are unknown
+    refreshComments();
+  }
 }
 
 /**
@@ -160,7 +268,11 @@ function deleteComment(comment) {
  * refreshes comments
  */
 function getLoginStatus(id) {
-  return fetch('/login-status').then(response => response.text()).then(link => {
+  // on page load, use the link rendered into index.html if there is one
+  const initialLink = id === 'body' ? takeInitialState('loginUrl') : undefined;
+  const linkPromise = initialLink !== undefined ? Promise.resolve(initialLink) :
+      fetch('/login-status').then(response => response.text());
+  return linkPromise.then(link => {
     // if user is logged in, server sends the logout link
     if (link.includes('logout')) {
       document.getElementById('post-event').style.display = 'block';
@@ -196,7 +308,10 @@ function toggleVisibility(id) {
  * the form to submit
  */
 function fetchBlobUrl() {
-  fetch('/blob-url').then(response => response.text()).then(url => {
+  const initialUrl = takeInitialState('uploadUrl');
+  const urlPromise = initialUrl !== undefined ? Promise.resolve(initialUrl) :
+      fetch('/blob-url').then(response => response.text());
+  urlPromise.then(url => {
     const submitForm = document.getElementById('post-event');
     submitForm.action = url;
     const blobInput = document.getElementById('blob-input');
@@ -205,15 +320,18 @@ function fetchBlobUrl() {
 }
 
 /**
- * Gets the current cursor from the last comment displayed
- * Pass that cursor to server end to fetch the next n comments
+ * Gets the order of the last comment displayed
+ * Pass it to server end to fetch the next n comments before it
  */
 function nextPage() {
   const nextPageElement = document.getElementById('next-page');
-  const cursorString = nextPageElement.innerHTML;
-  var cursorQuery = updateQueryString('cursor', cursorString);
+  const beforeString = nextPageElement.innerHTML;
+  if (beforeString === '') {
+    return;
+  }
+  var beforeQuery = updateQueryString('before', beforeString);
   
-  refreshComments(cursorQuery);
+  refreshComments(beforeQuery);
 }
 
 /**
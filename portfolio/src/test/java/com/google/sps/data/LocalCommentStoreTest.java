@@ -0,0 +1,199 @@
+package com.google.sps.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalCommentStoreTest {
+
+  // keys need an App Engine environment, though no service is called
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Key alice;
+  private Key bob;
+  private Path path;
+  private LocalCommentStore store;
+
+  @Before
+  public void open() throws IOException {
+    helper.setUp();
+    alice = CommentKeys.posterKey("alice");
+    bob = CommentKeys.posterKey("bob");
+    path = folder.getRoot().toPath().resolve("comments.log");
+    store = new LocalCommentStore(path);
+  }
+
+  @After
+  public void close() {
+    store.close();
+    helper.tearDown();
+  }
+
+  @Test
+  public void roundTripsEveryPropertyType() {
+    Entity comment = newComment(alice, 1, "Hello");
+    comment.setProperty("long", 42L);
+    comment.setProperty("double", 0.5);
+    comment.setProperty("boolean", true);
+    comment.setProperty("text", new Text("A long comment"));
+    comment.setProperty("nothing", null);
+
+    Entity stored = store.put(comment);
+
+    assertTrue(stored.getKey().isComplete());
+    assertEquals(alice, stored.getKey().getParent());
+    Entity read = store.get(Collections.singleton(stored.getKey())).get(stored.getKey());
+    assertEquals(stored.getProperties(), read.getProperties());
+  }
+
+  @Test
+  public void listsNewestFirstAndByPoster() {
+    Key first = store.put(newComment(alice, 1, "First")).getKey();
+    Key second = store.put(newComment(bob, 2, "Second")).getKey();
+    Key third = store.put(newComment(alice, 3, "Third")).getKey();
+
+    CommentStore.Page page = store.newest(2, null, null);
+    assertEquals(Arrays.asList(third, second), keys(page.getComments()));
+    assertEquals(Collections.singletonList(first),
+        keys(store.newest(2, page.getNextCursor(), null).getComments()));
+    assertEquals(Arrays.asList(third, first),
+        keys(store.postedBy(Collections.singletonList(alice), 10)));
+  }
+
+  @Test
+  public void updatesAndDeletes() {
+    Key kept = store.put(newComment(alice, 1, "Kept")).getKey();
+    Key deleted = store.put(newComment(alice, 2, "Deleted")).getKey();
+
+    store.update(Collections.singleton(kept), comment -> comment.setProperty("mood", "Sad"));
+    store.delete(Collections.singleton(deleted));
+
+    Map<Key, Entity> found = store.get(Arrays.asList(kept, deleted));
+    assertEquals(Collections.singleton(kept), found.keySet());
+    assertEquals("Sad", found.get(kept).getProperty("mood"));
+    assertEquals(Collections.singletonList(kept), keys(store.newest(10, null, null).getComments()));
+  }
+
+  @Test
+  public void replaysLogWhenReopened() throws IOException {
+    Key kept = store.put(newComment(alice, 1, "Kept")).getKey();
+    Key deleted = store.put(newComment(bob, 2, "Deleted")).getKey();
+    store.update(Collections.singleton(kept), comment -> comment.setProperty("mood", "Sad"));
+    store.delete(Collections.singleton(deleted));
+
+    reopen();
+
+    List<Entity> comments = store.newest(10, null, null).getComments();
+    assertEquals(Collections.singletonList(kept), keys(comments));
+    assertEquals("Sad", comments.get(0).getProperty("mood"));
+    assertTrue(store.postedBy(Collections.singletonList(bob), 10).isEmpty());
+    // ids keep counting from the replayed ones
+    Key next = store.put(newComment(bob, 3, "Next")).getKey();
+    assertTrue(next.getId() > deleted.getId());
+  }
+
+  @Test
+  public void ignoresRecordWithoutLength() throws IOException {
+    Key first = store.put(newComment(alice, 1, "First")).getKey();
+    store.put(newComment(alice, 2, "Torn"));
+    store.close();
+    // the crash came after the body was written but before its length
+    writeInt(recordOffsets().get(1), 0);
+
+    reopen();
+
+    assertEquals(Collections.singletonList(first),
+        keys(store.newest(10, null, null).getComments()));
+  }
+
+  @Test
+  public void ignoresRecordWithoutBody() throws IOException {
+    Key first = store.put(newComment(alice, 1, "First")).getKey();
+    store.put(newComment(alice, 2, "A torn comment that is longer than the next one"));
+    store.close();
+    // the length reached the disk but the body didn't
+    long torn = recordOffsets().get(1);
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+      int length = readInt(file, torn);
+      file.seek(torn + Integer.BYTES);
+      file.write(new byte[length]);
+    }
+
+    reopen();
+    assertEquals(Collections.singletonList(first),
+        keys(store.newest(10, null, null).getComments()));
+
+    // the next record replaces the torn one, and nothing of it is replayed later
+    Key next = store.put(newComment(bob, 3, "Next")).getKey();
+    reopen();
+    assertEquals(Arrays.asList(next, first), keys(store.newest(10, null, null).getComments()));
+    assertFalse(store.postedBy(Collections.singletonList(bob), 10).isEmpty());
+  }
+
+  private void reopen() throws IOException {
+    store.close();
+    store = new LocalCommentStore(path);
+  }
+
+  /** Returns the offset of every record in the log, following their lengths. */
+  private List<Long> recordOffsets() throws IOException {
+    List<Long> offsets = new ArrayList<>();
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+      long offset = 0;
+      for (int length = readInt(file, offset); length > 0; length = readInt(file, offset)) {
+        offsets.add(offset);
+        offset += Integer.BYTES + length;
+      }
+    }
+    return offsets;
+  }
+
+  private void writeInt(long offset, int value) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+      file.seek(offset);
+      file.writeInt(value);
+    }
+  }
+
+  private static int readInt(RandomAccessFile file, long offset) throws IOException {
+    file.seek(offset);
+    return file.readInt();
+  }
+
+  private static Entity newComment(Key posterKey, long order, String content) {
+    Entity comment = new Entity("Comment", posterKey);
+    comment.setProperty("order", order);
+    comment.setProperty("content", content);
+    comment.setProperty("mood", "Happy");
+    return comment;
+  }
+
+  private static List<Key> keys(List<Entity> comments) {
+    List<Key> keys = new ArrayList<>();
+    for (Entity comment : comments) {
+      keys.add(comment.getKey());
+    }
+    return keys;
+  }
+}
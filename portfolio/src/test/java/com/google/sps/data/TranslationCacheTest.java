@@ -0,0 +1,86 @@
+package com.google.sps.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TranslationCacheTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private DatastoreService datastore;
+  private TranslationCache cache;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    cache = TranslationCache.getInstance();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void keepsEveryLanguageInOneEntity() throws EntityNotFoundException {
+    // the memory tier is shared by all tests, so each uses its own comments
+    Key comment = KeyFactory.createKey(CommentKeys.posterKey("alice"), "Comment", 1);
+    cache.putAll(datastore, Collections.singletonMap(comment, "Hola"), "es");
+    cache.putAll(datastore, Collections.singletonMap(comment, "Bonjour"), "fr");
+
+    assertEquals(1, datastore.prepare(new Query("Translations")).countEntities());
+    List<Key> keys = TranslationCache.translationKeys(Collections.singleton(comment));
+    assertEquals(1, keys.size());
+    Entity stored = datastore.get(keys.get(0));
+    assertEquals("Hola", ((Text) stored.getProperty("es")).getValue());
+    assertEquals("Bonjour", ((Text) stored.getProperty("fr")).getValue());
+  }
+
+  @Test
+  public void readsAllLanguagesOfAStoredComment() {
+    Key comment = KeyFactory.createKey(CommentKeys.posterKey("bob"), "Comment", 2);
+    Entity stored = new Entity(TranslationCache.translationKeys(
+        Collections.singleton(comment)).get(0));
+    stored.setUnindexedProperty("es", new Text("Hola"));
+    stored.setUnindexedProperty("zh-TW", new Text("你好"));
+    datastore.put(stored);
+
+    Map<Key, String> spanish =
+        cache.getAll(datastore, Collections.singleton(comment), "es");
+    // the other language came along with the same read
+    Map<Key, String> chinese = cache.getAll(null, Collections.singleton(comment), "zh-TW");
+
+    assertEquals("Hola", spanish.get(comment));
+    assertEquals("你好", chinese.get(comment));
+  }
+
+  @Test
+  public void invalidateDeletesTheEntity() {
+    Key comment = KeyFactory.createKey(CommentKeys.posterKey("carol"), "Comment", 3);
+    cache.putAll(datastore, Collections.singletonMap(comment, "Hallo"), "de");
+
+    cache.invalidate(datastore, Collections.singleton(comment));
+
+    assertEquals(0, datastore.prepare(new Query("Translations")).countEntities());
+    assertTrue(cache.getAll(datastore, Collections.singleton(comment), "de").isEmpty());
+  }
+}
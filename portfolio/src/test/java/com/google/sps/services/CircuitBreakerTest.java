@@ -0,0 +1,106 @@
+package com.google.sps.services;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+  private static final long LONG_COOL_DOWN_MILLIS = 60 * 1000;
+
+  @Test
+  public void opensAfterFiveFailuresInARow() {
+    CircuitBreaker breaker = new CircuitBreaker("test", 5, LONG_COOL_DOWN_MILLIS);
+
+    for (int i = 0; i < 4; i++) {
+      breaker.recordFailure();
+    }
+    assertTrue(breaker.allowRequest());
+    breaker.recordFailure();
+
+    assertFalse(breaker.allowRequest());
+  }
+
+  @Test
+  public void successStartsTheCountAgain() {
+    CircuitBreaker breaker = new CircuitBreaker("test", 5, LONG_COOL_DOWN_MILLIS);
+
+    for (int i = 0; i < 4; i++) {
+      breaker.recordFailure();
+    }
+    breaker.recordSuccess();
+    for (int i = 0; i < 4; i++) {
+      breaker.recordFailure();
+    }
+
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void letsOneTrialThroughAfterTheCoolDown() {
+    // no cool-down, so the trial is due as soon as the breaker opens
+    CircuitBreaker breaker = new CircuitBreaker("test", 5, 0);
+    for (int i = 0; i < 5; i++) {
+      breaker.recordFailure();
+    }
+
+    assertTrue(breaker.allowRequest());
+    // the trial is still running
+    assertFalse(breaker.allowRequest());
+    breaker.recordSuccess();
+
+    assertTrue(breaker.allowRequest());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void failedTrialOpensTheBreakerAgain() {
+    CircuitBreaker breaker = new CircuitBreaker("test", 5, 0);
+    for (int i = 0; i < 5; i++) {
+      breaker.recordFailure();
+    }
+
+    assertTrue(breaker.allowRequest());
+    breaker.recordFailure();
+
+    // a single failed trial opens it again, so again only one call is let through
+    assertTrue(breaker.allowRequest());
+    assertFalse(breaker.allowRequest());
+  }
+
+  @Test
+  public void refusesCallsDuringTheCoolDown() {
+    CircuitBreaker breaker = new CircuitBreaker("test", 1, LONG_COOL_DOWN_MILLIS);
+    breaker.recordFailure();
+
+    CircuitBreaker.Call call = breaker.newCall();
+
+    assertFalse(call.tryStart());
+    assertTrue(call.isSettled());
+  }
+
+  @Test
+  public void ignoresLateOutcomeAfterCallerTimedOut() {
+    CircuitBreaker breaker = new CircuitBreaker("test", 1, LONG_COOL_DOWN_MILLIS);
+    CircuitBreaker.Call call = breaker.newCall();
+    assertTrue(call.tryStart());
+
+    // the caller stops waiting and counts the call as failed
+    call.failed();
+    // then the call answers after all
+    call.succeeded();
+
+    assertFalse(breaker.allowRequest());
+  }
+
+  @Test
+  public void callGivenUpOnBeforeItStartsIsNotMade() {
+    CircuitBreaker breaker = new CircuitBreaker("test", 5, LONG_COOL_DOWN_MILLIS);
+    CircuitBreaker.Call call = breaker.newCall();
+
+    call.failed();
+
+    assertFalse(call.tryStart());
+  }
+}
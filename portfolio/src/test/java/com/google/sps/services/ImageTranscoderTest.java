@@ -0,0 +1,163 @@
+package com.google.sps.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import org.junit.Test;
+
+public class ImageTranscoderTest {
+
+  @Test
+  public void readsExifOrientation() throws IOException {
+    assertEquals(6, ImageTranscoder.exifOrientation(fixture("rotated.jpg")));
+    assertEquals(1, ImageTranscoder.exifOrientation(fixture("transparent.png")));
+  }
+
+  @Test
+  public void turnsRotatedPhotoUpright() throws IOException {
+    // stored 200x100 with red on the left and blue on the right, EXIF orientation 6
+    ImageTranscoder.Result result = ImageTranscoder.transcode(fixture("rotated.jpg"));
+
+    assertNotNull(result);
+    assertEquals("image/jpeg", result.getContentType());
+    BufferedImage image = decode(result.getData());
+    assertEquals(100, image.getWidth());
+    assertEquals(200, image.getHeight());
+    // turned a quarter clockwise, the left side is now on top
+    assertTrue(isReddish(image.getRGB(50, 20)));
+    assertTrue(isBluish(image.getRGB(50, 180)));
+  }
+
+  @Test
+  public void keepsTransparency() throws IOException {
+    // 3200x1600, transparent on the left and opaque green on the right
+    ImageTranscoder.Result result = ImageTranscoder.transcode(fixture("transparent.png"));
+
+    assertNotNull(result);
+    assertEquals("image/png", result.getContentType());
+    BufferedImage image = decode(result.getData());
+    assertEquals(1600, image.getWidth());
+    assertEquals(800, image.getHeight());
+    assertTrue(image.getColorModel().hasAlpha());
+    assertEquals(0, image.getRGB(100, 400) >>> 24);
+    assertEquals(0xff, image.getRGB(1500, 400) >>> 24);
+  }
+
+  @Test
+  public void subsamplesLargeImages() throws IOException {
+    // 8000x6000 is decoded at every fifth pixel
+    BufferedImage image = ImageTranscoder.read(fixture("large.png"));
+
+    assertEquals(1600, image.getWidth());
+    assertEquals(1200, image.getHeight());
+  }
+
+  @Test
+  public void rejectsOversizedImages() throws IOException {
+    // 12000x10000 is over the pixel limit
+    assertNull(ImageTranscoder.read(fixture("oversized.png")));
+    assertNull(ImageTranscoder.transcode(fixture("oversized.png")));
+  }
+
+  @Test
+  public void stripsMetadataEvenIfNotSmaller() throws IOException {
+    // a noisy image compressed harder than usual only grows when re-encoded
+    byte[] plain = noisyJpeg();
+    byte[] tagged = withExif(plain);
+    assertNull(ImageTranscoder.transcode(plain));
+
+    ImageTranscoder.Result result = ImageTranscoder.transcode(tagged);
+
+    assertNotNull(result);
+    assertTrue(result.getData().length >= tagged.length);
+    assertTrue(ImageTranscoder.hasMetadata(tagged));
+    assertFalse(ImageTranscoder.hasMetadata(result.getData()));
+  }
+
+  @Test
+  public void findsPngTextChunks() throws IOException {
+    byte[] png = fixture("transparent.png");
+    assertFalse(ImageTranscoder.hasMetadata(png));
+    // a tEXt chunk right after the 8-byte signature and the 25-byte IHDR chunk
+    ByteArrayOutputStream tagged = new ByteArrayOutputStream();
+    tagged.write(png, 0, 33);
+    tagged.write(new byte[] {0, 0, 0, 4, 't', 'E', 'X', 't', 'a', 0, 'b', 'c', 0, 0, 0, 0});
+    tagged.write(png, 33, png.length - 33);
+    assertTrue(ImageTranscoder.hasMetadata(tagged.toByteArray()));
+  }
+
+  @Test
+  public void ignoresNonImages() throws IOException {
+    assertNull(ImageTranscoder.transcode("not an image".getBytes("UTF-8")));
+  }
+
+  private static boolean isReddish(int rgb) {
+    return (rgb >> 16 & 0xff) > 200 && (rgb & 0xff) < 60;
+  }
+
+  private static boolean isBluish(int rgb) {
+    return (rgb & 0xff) > 200 && (rgb >> 16 & 0xff) < 60;
+  }
+
+  private static byte[] noisyJpeg() throws IOException {
+    BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(42);
+    for (int y = 0; y < 64; y++) {
+      for (int x = 0; x < 64; x++) {
+        image.setRGB(x, y, random.nextInt(0x1000000));
+      }
+    }
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(0.5f);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+      writer.setOutput(stream);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    return out.toByteArray();
+  }
+
+  /** Returns the JPEG with an APP1 EXIF segment holding an empty little-endian TIFF header. */
+  private static byte[] withExif(byte[] jpeg) {
+    byte[] app1 = {(byte) 0xff, (byte) 0xe1, 0, 16, 'E', 'x', 'i', 'f', 0, 0,
+        'I', 'I', 42, 0, 8, 0, 0, 0};
+    byte[] tagged = new byte[jpeg.length + app1.length];
+    System.arraycopy(jpeg, 0, tagged, 0, 2);
+    System.arraycopy(app1, 0, tagged, 2, app1.length);
+    System.arraycopy(jpeg, 2, tagged, 2 + app1.length, jpeg.length - 2);
+    return tagged;
+  }
+
+  private static BufferedImage decode(byte[] data) throws IOException {
+    return ImageIO.read(new ByteArrayInputStream(data));
+  }
+
+  private static byte[] fixture(String name) throws IOException {
+    try (InputStream in = ImageTranscoderTest.class.getResourceAsStream("/images/" + name)) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    }
+  }
+}
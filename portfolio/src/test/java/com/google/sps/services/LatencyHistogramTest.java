@@ -0,0 +1,66 @@
+package com.google.sps.services;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void countsEachMicrosecondBelowThirtyTwo() {
+    for (int micros = 0; micros < 32; micros++) {
+      assertEquals(micros, LatencyHistogram.index(micros));
+      assertEquals(micros, LatencyHistogram.upperBoundMicros(micros));
+    }
+  }
+
+  @Test
+  public void splitsPowersOfTwoIntoSixteenBuckets() {
+    // 32 to 63 in buckets two wide
+    assertEquals(32, LatencyHistogram.index(32));
+    assertEquals(32, LatencyHistogram.index(33));
+    assertEquals(33, LatencyHistogram.index(34));
+    assertEquals(33, LatencyHistogram.upperBoundMicros(32));
+    assertEquals(47, LatencyHistogram.index(63));
+    assertEquals(63, LatencyHistogram.upperBoundMicros(47));
+    // 64 to 127 in buckets four wide
+    assertEquals(48, LatencyHistogram.index(64));
+    assertEquals(48, LatencyHistogram.index(67));
+    assertEquals(49, LatencyHistogram.index(68));
+    assertEquals(67, LatencyHistogram.upperBoundMicros(48));
+    assertEquals(63, LatencyHistogram.index(127));
+    assertEquals(64, LatencyHistogram.index(128));
+  }
+
+  @Test
+  public void lastBucketEndsAtMaxMicros() {
+    int last = LatencyHistogram.BUCKETS - 1;
+
+    assertEquals(last, LatencyHistogram.index(LatencyHistogram.MAX_MICROS));
+    assertEquals(LatencyHistogram.MAX_MICROS, LatencyHistogram.upperBoundMicros(last));
+    // the first value of the last power of two
+    assertEquals(last - 15, LatencyHistogram.index(1L << 36));
+  }
+
+  @Test
+  public void bucketsFollowEachOtherWithoutGaps() {
+    for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+      long bound = LatencyHistogram.upperBoundMicros(i);
+      assertEquals(i, LatencyHistogram.index(bound));
+      assertEquals(i + 1, LatencyHistogram.index(bound + 1));
+    }
+  }
+
+  @Test
+  public void clampsValuesOutsideTheRange() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(Long.MAX_VALUE);
+    histogram.record(-1);
+
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+    assertEquals(2, snapshot.getCount());
+    assertEquals(0, snapshot.quantileSeconds(0.5), 0);
+    assertEquals(LatencyHistogram.MAX_MICROS / 1e6, snapshot.quantileSeconds(1), 0);
+  }
+}